@@ -0,0 +1,99 @@
+package ca.ubc.clicker.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ubc.clicker.server.ClickerServer;
+import ca.ubc.clicker.server.ParsedCommand;
+import ca.ubc.clicker.server.filters.Filter;
+import ca.ubc.clicker.server.filters.StructuredFilter;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.ChoiceMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Filters for FilterBenchmark: one that only looks at messages, one that
+ * rewrites choices the way MultipleInstructorFilter does and a structured
+ * one that rewrites choices without parsing them.
+ *
+ */
+final class BenchFilters {
+	static final String PASS_THROUGH = "pass-through";
+	static final String REWRITE = "rewrite";
+	static final String STRUCTURED = "structured";
+	
+	private BenchFilters() {
+	}
+	
+	static Filter create(String kind) {
+		if (REWRITE.equals(kind)) {
+			return new RewriteFilter();
+		}
+		return new PassThroughFilter();
+	}
+	
+	// copies the choices of every choices broadcast, as the rewrite filter does after parsing
+	static class StructuredRewriteFilter implements StructuredFilter {
+		@Override
+		public boolean initialize(ClickerServer server) {
+			return true;
+		}
+		
+		@Override
+		public ResponseMessage output(ResponseMessage message) {
+			if ("choices".equals(message.type) && message.data instanceof List) {
+				message.data = new ArrayList<Object>((List<?>) message.data);
+			}
+			return message;
+		}
+		
+		@Override
+		public ParsedCommand input(ParsedCommand command) {
+			return "enable choices".equals(command.getName()) ? null : command;
+		}
+	}
+	
+	// checks each message for commands it would handle, like most filters
+	static class PassThroughFilter implements Filter {
+		@Override
+		public boolean initialize(ClickerServer server) {
+			return true;
+		}
+		
+		@Override
+		public String output(String message) {
+			return message.indexOf("\"command\":\"status\"") != -1 ? message.trim() : message;
+		}
+		
+		@Override
+		public String input(String message) {
+			return message.trim().equals("{\"command\":\"enable choices\"}") ? null : message;
+		}
+	}
+	
+	// parses every choices broadcast and serializes it again
+	static class RewriteFilter extends PassThroughFilter {
+		private final JsonParser parser = new JsonParser();
+		
+		@Override
+		public String output(String message) {
+			if (message.indexOf("{\"type\":\"choices\"") == -1) {
+				return super.output(message);
+			}
+			JsonArray data = parser.parse(message).getAsJsonObject().get("data").getAsJsonArray();
+			List<ChoiceMessage> choices = new ArrayList<ChoiceMessage>(data.size());
+			for (JsonElement choice : data) {
+				choices.add(GsonFactory.gson().fromJson(choice, ChoiceMessage.class));
+			}
+			
+			ResponseMessage response = new ResponseMessage();
+			response.type = "choices";
+			response.data = choices;
+			return GsonFactory.gson().toJson(response);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package ca.ubc.clicker.bench;
+
+import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.server.filters.Filter;
+import ca.ubc.clicker.server.filters.StructuredFilter;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.io.BaseIOServer;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+/**
+ * A BaseIOServer that doesn't listen, with clients and filters added directly.
+ *
+ */
+public class BenchIOServer extends BaseIOServer {
+	
+	public BenchIOServer() {
+		super(-1);
+	}
+	
+	public void connect(ClickerClient client) {
+		addClient(client);
+	}
+	
+	public void filter(Filter filter) {
+		addFilter(filter);
+	}
+	
+	public void filter(StructuredFilter filter) {
+		addFilter(filter);
+	}
+	
+	public String runInputFilters(String message) {
+		return filterInput(message);
+	}
+	
+	public String runOutputFilters(String message) {
+		return filterOutput(message);
+	}
+	
+	// what output(ResponseMessage, client) does before encoding
+	public String runOutputFilters(ResponseMessage message) {
+		message = filterOutput(message);
+		return message == null ? null : filterOutput(GsonFactory.gson().toJson(message));
+	}
+}
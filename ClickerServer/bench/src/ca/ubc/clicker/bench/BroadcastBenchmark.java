@@ -0,0 +1,57 @@
+package ca.ubc.clicker.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+/**
+ * BaseIOServer.output of a 10 vote choices broadcast to in-memory clients,
+ * i.e. encoding it and queueing it for every client.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+	
+	@Param({ "1", "100", "1000" })
+	public int clients;
+	
+	private BenchIOServer io;
+	private String message;
+	
+	@Setup
+	public void setup() {
+		io = new BenchIOServer();
+		for (int i = 0; i < clients; i++) {
+			io.connect(new MemoryClient(io));
+		}
+		
+		ResponseMessage choices = new ResponseMessage();
+		choices.type = "choices";
+		choices.data = Arrays.asList(Fixtures.choices(10));
+		message = GsonFactory.gson().toJson(choices);
+	}
+	
+	@Benchmark
+	public void output() {
+		io.output(message);
+	}
+}
@@ -0,0 +1,63 @@
+package ca.ubc.clicker.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.clicker.server.ClickerInput;
+import ca.ubc.clicker.server.ClickerServer;
+import ca.ubc.clicker.server.CommandController;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.CommandMessage;
+
+/**
+ * CommandController.runCommand for each built in command, from parsing the
+ * input line to queueing the response for the client that sent it.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+	
+	@Param({ CommandController.COMMAND_PING, CommandController.COMMAND_START_VOTING, CommandController.COMMAND_STOP_VOTING,
+			CommandController.COMMAND_STATUS, CommandController.COMMAND_CHOOSE, CommandController.COMMAND_CLIENTS,
+			CommandController.COMMAND_TALLY })
+	public String command;
+	
+	private CommandController controller;
+	private MemoryClient client;
+	private String input;
+	
+	@Setup
+	public void setup() throws Exception {
+		ClickerServer server = Fixtures.server();
+		controller = server.getCommandController();
+		client = new MemoryClient(server);
+		
+		CommandMessage message = new CommandMessage();
+		message.command = command;
+		if (CommandController.COMMAND_CHOOSE.equals(command)) {
+			message.arguments = Fixtures.choices(1);
+		}
+		input = GsonFactory.gson().toJson(message);
+	}
+	
+	@Benchmark
+	public void runCommand() {
+		controller.runCommand(new ClickerInput(input, client));
+	}
+}
@@ -0,0 +1,77 @@
+package ca.ubc.clicker.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.CommandMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+/**
+ * The BaseIOServer filter chains: a choose command going in and a 10 vote
+ * choices broadcast going out, through a number of filters of one kind.
+ * Output starts from the server's ResponseMessage and ends with the line
+ * the clients are sent, so it includes serializing the message.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+	
+	@Param({ "0", "1", "4" })
+	public int filters;
+	
+	@Param({ BenchFilters.PASS_THROUGH, BenchFilters.REWRITE, BenchFilters.STRUCTURED })
+	public String kind;
+	
+	private BenchIOServer io;
+	private String input;
+	private ResponseMessage output;
+	
+	@Setup
+	public void setup() {
+		io = new BenchIOServer();
+		for (int i = 0; i < filters; i++) {
+			if (BenchFilters.STRUCTURED.equals(kind)) {
+				io.filter(new BenchFilters.StructuredRewriteFilter());
+			} else {
+				io.filter(BenchFilters.create(kind));
+			}
+		}
+		
+		CommandMessage choose = new CommandMessage();
+		choose.command = "choose";
+		choose.arguments = Fixtures.choices(1);
+		input = GsonFactory.gson().toJson(choose);
+		
+		output = new ResponseMessage();
+		output.type = "choices";
+		output.data = Arrays.asList(Fixtures.choices(10));
+	}
+	
+	@Benchmark
+	public String input() {
+		return io.runInputFilters(input);
+	}
+	
+	@Benchmark
+	public String output() {
+		return io.runOutputFilters(output);
+	}
+}
@@ -0,0 +1,66 @@
+package ca.ubc.clicker.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import ca.ubc.clicker.BaseClickerApp;
+import ca.ubc.clicker.Vote;
+import ca.ubc.clicker.enums.ButtonEnum;
+import ca.ubc.clicker.server.ClickerServer;
+import ca.ubc.clicker.server.ServerConfig;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.ChoiceMessage;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Servers and votes shared by the benchmarks.
+ *
+ */
+final class Fixtures {
+	static final String INSTRUCTOR_ID = "371BA68A";
+	private static final ButtonEnum[] BUTTONS = ButtonEnum.values();
+	
+	private Fixtures() {
+	}
+	
+	// a server that doesn't listen on a port, accepting votes. needs the hidapi native library like the real server.
+	static ClickerServer server() throws Exception {
+		ClickerServer server = new ClickerServer(INSTRUCTOR_ID, BaseClickerApp.DEFAULT_CHANNEL_1, BaseClickerApp.DEFAULT_CHANNEL_2, -1,
+				new ServerConfig(new Properties()));
+		server.startAcceptingVotes();
+		return server;
+	}
+	
+	static String clickerId(int i) {
+		return String.format("%08X", 0x10000000 + i);
+	}
+	
+	static List<Vote> votes(int count) {
+		List<Vote> votes = new ArrayList<Vote>(count);
+		for (int i = 0; i < count; i++) {
+			Vote vote = new Vote(clickerId(i), BUTTONS[i % BUTTONS.length]);
+			votes.add(vote);
+		}
+		return votes;
+	}
+	
+	static ChoiceMessage[] choices(int count) {
+		ChoiceMessage[] choices = new ChoiceMessage[count];
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			ChoiceMessage choice = new ChoiceMessage();
+			choice.id = clickerId(i);
+			choice.choice = BUTTONS[i % BUTTONS.length].name();
+			choice.time = time;
+			choices[i] = choice;
+		}
+		return choices;
+	}
+	
+	// the arguments of a choose command
+	static JsonElement choicesJson(int count) {
+		return GsonFactory.gson().toJsonTree(choices(count));
+	}
+}
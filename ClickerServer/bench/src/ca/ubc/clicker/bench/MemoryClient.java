@@ -0,0 +1,32 @@
+package ca.ubc.clicker.bench;
+
+import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.client.ClientOutputQueue;
+import ca.ubc.clicker.server.io.EncodedMessage;
+import ca.ubc.clicker.server.io.IOServer;
+
+/**
+ * A client without a connection that takes its output as soon as it is
+ * queued, so benchmarks measure the server side of a broadcast only.
+ *
+ */
+public class MemoryClient extends ClickerClient {
+	private long received = 0; // bytes
+	
+	public MemoryClient(IOServer server) {
+		super(server);
+	}
+	
+	@Override
+	protected void messageQueued() {
+		ClientOutputQueue queue = getOutputQueue();
+		EncodedMessage message;
+		while ((message = queue.poll()) != null) {
+			received += message.length();
+		}
+	}
+	
+	public long getReceived() {
+		return received;
+	}
+}
@@ -0,0 +1,145 @@
+package ca.ubc.clicker.bench;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.ChoiceMessage;
+import ca.ubc.clicker.server.messages.ClientStatsMessage;
+import ca.ubc.clicker.server.messages.CommandMessage;
+import ca.ubc.clicker.server.messages.CommandResponseMessage;
+import ca.ubc.clicker.server.messages.ErrorMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+import ca.ubc.clicker.server.messages.StatusMessage;
+import ca.ubc.clicker.server.messages.TallyMessage;
+
+import com.google.gson.Gson;
+
+/**
+ * GsonFactory serialization of each message class, filled in the way the
+ * server fills them in. choices is a broadcast of 10 votes.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	private Gson gson;
+	private ChoiceMessage choice;
+	private ResponseMessage choices;
+	private CommandMessage command;
+	private CommandResponseMessage commandResponse;
+	private ErrorMessage error;
+	private StatusMessage status;
+	private TallyMessage tally;
+	private ClientStatsMessage clientStats;
+	
+	@Setup
+	public void setup() {
+		gson = GsonFactory.gson();
+		long time = System.currentTimeMillis();
+		
+		choice = Fixtures.choices(1)[0];
+		
+		choices = new ResponseMessage();
+		choices.type = "choices";
+		choices.data = Arrays.asList(Fixtures.choices(10));
+		
+		command = new CommandMessage();
+		command.command = "choose";
+		command.arguments = Fixtures.choices(1);
+		
+		commandResponse = new CommandResponseMessage();
+		commandResponse.command = "enable choices";
+		commandResponse.data = true;
+		
+		error = new ErrorMessage();
+		error.command = "choose";
+		error.error = "Unable to find command";
+		
+		status = new StatusMessage();
+		status.time = time;
+		status.instructorId = Fixtures.INSTRUCTOR_ID;
+		status.acceptingChoices = true;
+		status.numClients = 3;
+		status.pollInterval = 150L;
+		status.pollLatency = 420L;
+		status.pollLatencyMax = 1500L;
+		status.inputQueueDepth = 0;
+		status.inputQueueStalls = 0L;
+		
+		tally = new TallyMessage();
+		tally.counts = new LinkedHashMap<String, Integer>();
+		tally.counts.put("A", 12);
+		tally.counts.put("B", 30);
+		tally.counts.put("C", 5);
+		tally.counts.put("D", 0);
+		tally.counts.put("E", 1);
+		tally.total = 48;
+		tally.time = time;
+		
+		clientStats = new ClientStatsMessage();
+		clientStats.id = 1;
+		clientStats.queued = 0;
+		clientStats.maxQueued = 4;
+		clientStats.sent = 1200L;
+		clientStats.dropped = 0L;
+		clientStats.coalesced = 0L;
+		clientStats.conflated = 0L;
+	}
+	
+	@Benchmark
+	public String choice() {
+		return gson.toJson(choice);
+	}
+	
+	@Benchmark
+	public String choices() {
+		return gson.toJson(choices);
+	}
+	
+	@Benchmark
+	public String command() {
+		return gson.toJson(command);
+	}
+	
+	@Benchmark
+	public String commandResponse() {
+		return gson.toJson(commandResponse);
+	}
+	
+	@Benchmark
+	public String error() {
+		return gson.toJson(error);
+	}
+	
+	@Benchmark
+	public String status() {
+		return gson.toJson(status);
+	}
+	
+	@Benchmark
+	public String tally() {
+		return gson.toJson(tally);
+	}
+	
+	@Benchmark
+	public String clientStats() {
+		return gson.toJson(clientStats);
+	}
+}
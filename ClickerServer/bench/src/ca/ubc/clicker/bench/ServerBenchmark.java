@@ -0,0 +1,59 @@
+package ca.ubc.clicker.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.clicker.Vote;
+import ca.ubc.clicker.server.ClickerServer;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Turning choose arguments into votes, and votes into a choices broadcast
+ * (with no clients connected, see BroadcastBenchmark for those).
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+	
+	@Param({ "1", "10", "100" })
+	public int votes;
+	
+	private ClickerServer server;
+	private JsonElement choicesJson;
+	private List<Vote> voteList;
+	
+	@Setup
+	public void setup() throws Exception {
+		server = Fixtures.server();
+		choicesJson = Fixtures.choicesJson(votes);
+		voteList = Fixtures.votes(votes);
+	}
+	
+	@Benchmark
+	public List<Vote> votesFromJson() {
+		return server.votesFromJson(choicesJson);
+	}
+	
+	@Benchmark
+	public void outputChoices() {
+		server.outputChoices(voteList);
+	}
+}
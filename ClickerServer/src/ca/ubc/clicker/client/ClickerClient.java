@@ -2,11 +2,21 @@ package ca.ubc.clicker.client;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import ca.ubc.clicker.server.ClickerSession;
+import ca.ubc.clicker.server.RateLimits;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.io.EncodedMessage;
 import ca.ubc.clicker.server.io.IOServer;
+import ca.ubc.clicker.server.messages.ErrorMessage;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+import ca.ubc.clicker.server.util.OverLimitPolicy;
+import ca.ubc.clicker.server.util.RateLimit;
 
 
 /**
@@ -24,28 +34,43 @@ import ca.ubc.clicker.server.io.IOServer;
  */
 public class ClickerClient {
 	private static Logger log = LogManager.getLogger();
+	private static final Counter rateLimitedInput = Metrics.counter("input.rateLimited"); // over connectionRateLimit
+	private static final int LOG_EVERY = 1000; // lines dropped between warnings about a client
+	private static final EncodedMessage RATE_LIMITED = rateLimitedError();
 	
 	private static int clientId = 1;
 	
-	boolean alive = true;
+	private volatile boolean alive = true;
+	private volatile ClientListener listener;
+	private volatile ClickerSession session; // null until it joins one, see ClickerServer.getSession
+	private volatile boolean relay = false; // a RelayServer, sending for all of its clients
 	private Socket clientSocket; 
 	private int id;
 	
+	private final ClientOutputQueue outputQueue;
+	private final AtomicLong inputBucket = RateLimit.newBucket(); // see RateLimits
+	private final AtomicLong rateLimited = new AtomicLong(); // lines dropped over the limit
 	private ClientOutputThread output;
 	private ClientInputThread input;
 	
 	private IOServer server;
 	
-	public ClickerClient(Socket clientSocket, IOServer server) {
-		this.id = clientId++;
+	// used by clients that do not run their own threads (e.g. the nio transport)
+	protected ClickerClient(IOServer server) {
+		this.id = nextClientId();
+		this.server = server;
+		this.outputQueue = new ClientOutputQueue();
 		log.info("Client "+id+" connected.");
+	}
+	
+	public ClickerClient(Socket clientSocket, IOServer server) {
+		this(server);
 		
 		this.clientSocket = clientSocket;
-		this.server = server;
 		
 		// create output thread
 		try {
-			this.output = new ClientOutputThread(id, clientSocket.getOutputStream());
+			this.output = new ClientOutputThread(id, clientSocket.getOutputStream(), this);
 		} catch (IOException e) {
 			log.error("Error getting output stream for client "+id);
 		}
@@ -56,27 +81,81 @@ public class ClickerClient {
 		} catch (IOException e) {
 			log.error("Error getting input stream for client "+id);
 		}
+		
+		// only now, so a client that disconnects right away finds the output thread to shut down
+		if (output != null) {
+			output.start();
+		}
+		if (input != null) {
+			input.start();
+		}
+	}
+	
+	private static synchronized int nextClientId() {
+		return clientId++;
+	}
+	
+	public int getId() {
+		return id;
 	}
 	
 	public boolean isAlive() {
 		return alive;
 	}
 	
-	private boolean checkStatus() {
-		if (!alive) // already not alive 
-			return false; 
-		
-		alive = output.isAlive() && input.isAlive();
-		if (!alive) { // just ended if either thread is done
-			try {
-				clientSocket.close();
-				log.info("Client "+ id + " disconnected.");
-			} catch (IOException e) {
-				log.error("Error closing socket for client " + id);
+	public ClientOutputQueue getOutputQueue() {
+		return outputQueue;
+	}
+	
+	// input dropped for being over the connection's rate limit
+	public long getRateLimited() {
+		return rateLimited.get();
+	}
+	
+	public ClickerSession getSession() {
+		return session;
+	}
+	
+	public void setSession(ClickerSession session) {
+		this.session = session;
+	}
+	
+	// notified once when the client disconnects
+	public void setListener(ClientListener listener) {
+		this.listener = listener;
+	}
+	
+	// marks the client as no longer alive and notifies the listener. returns false if it already was.
+	protected boolean disconnected() {
+		synchronized (this) {
+			if (!alive) {
+				return false;
 			}
+			alive = false;
 		}
 		
-		return alive;
+		ClientListener currListener = listener;
+		if (currListener != null) {
+			currListener.clientDisconnected(this);
+		}
+		return true;
+	}
+	
+	// called by the input or output thread when it ends; closing the socket stops the other one
+	public void close() {
+		if (!disconnected() || clientSocket == null) {
+			return;
+		}
+		
+		try {
+			clientSocket.close();
+			log.info("Client "+ id + " disconnected.");
+		} catch (IOException e) {
+			log.error("Error closing socket for client " + id);
+		}
+		if (output != null) {
+			output.shutdown();
+		}
 	}
 	
 	public String toString() {
@@ -85,19 +164,61 @@ public class ClickerClient {
 	
 	// sends output from server to client
 	public void output(String message) {
-		if (!checkStatus()) { // update status and if no longer alive, abort
+		output(EncodedMessage.encode(message));
+	}
+	
+	// sends already encoded output from server to client. broadcasts share the same message.
+	public void output(EncodedMessage message) {
+		if (!alive) {
 			return;
 		}
 	
-		try {
-			output.getMessageQueue().add(message);
-		} catch (IllegalStateException e) {
-			log.error("Warning: no space left in queue for " + output);
+		if (outputQueue.offer(message)) {
+			messageQueued();
+		} else { // full and the policy is to disconnect
+			log.warn("Disconnecting " + this + ": output queue full (" + outputQueue.getCapacity() + " messages)");
+			close();
 		}
 	}
 	
-	// sends input from client to server
+	// called after output is queued, for transports that need to be woken up
+	protected void messageQueued() {
+	}
+	
+	// sends input from client to server, unless the connection is over its rate limit
 	public void input(String message) {
+		RateLimit limit = relay ? RateLimits.getRelayLimit() : RateLimits.getConnectionLimit();
+		if (limit != null && !limit.tryAcquire(inputBucket, System.nanoTime())) {
+			overRateLimit(limit);
+			return;
+		}
 		server.input(message, this);
 	}
+	
+	private void overRateLimit(RateLimit limit) {
+		rateLimitedInput.increment();
+		long dropped = rateLimited.incrementAndGet();
+		if (dropped == 1 || dropped % LOG_EVERY == 0) {
+			log.warn(this + " is over its rate limit (" + limit + "), " + dropped + " lines dropped");
+		}
+		if (!relay && RateLimits.getPolicy() == OverLimitPolicy.REJECT) { // a relay would send it to all its clients
+			output(RATE_LIMITED);
+		}
+	}
+	
+	// the connection is a relay's, so relayRateLimit applies to it instead of connectionRateLimit
+	public void setRelay() {
+		relay = true;
+	}
+	
+	public boolean isRelay() {
+		return relay;
+	}
+	
+	// the same error for every line over the limit, it wasn't parsed to know its command
+	private static EncodedMessage rateLimitedError() {
+		ErrorMessage error = new ErrorMessage();
+		error.error = "Rate limit exceeded";
+		return EncodedMessage.encode(GsonFactory.gson().toJson(error));
+	}
 }
\ No newline at end of file
@@ -5,23 +5,34 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import ca.ubc.clicker.server.ServerThreads;
+
 /**
  * Reads in input from a client
  * @author pbeshai
  *
  */
-public class ClientInputThread extends Thread {
+public class ClientInputThread implements Runnable {
 	private int id;
+	private volatile Thread thread; // null until started
 	
 	private BufferedReader in;
 	private ClickerClient client;
 	
 	public ClientInputThread(int id, InputStream inputStream, ClickerClient client) {
-		super("ClientInputThread" + id);
+		this.id = id;
 		this.client = client;
 		in = new BufferedReader(new InputStreamReader(inputStream));
-
-		start();
+	}
+	
+	// started once the client is constructed, so it can't see the client half built
+	public void start() {
+		thread = ServerThreads.start(this, "ClientInputThread" + id);
+	}
+	
+	public boolean isAlive() {
+		Thread current = thread;
+		return current != null && current.isAlive();
 	}
 	
 	@Override
@@ -35,8 +46,9 @@ public class ClientInputThread extends Thread {
 			
 			in.close();
 		} catch (IOException e) {
-			System.out.println("IOException while running client "+id);
-			e.printStackTrace();
+			// socket closed, either by the client or by us
 		}
+		
+		client.close();
 	}
 }
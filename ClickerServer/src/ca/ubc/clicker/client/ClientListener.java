@@ -0,0 +1,10 @@
+package ca.ubc.clicker.client;
+
+/**
+ * Receives client lifecycle events, e.g. so a server can drop a client as
+ * soon as its connection closes.
+ *
+ */
+public interface ClientListener {
+	public void clientDisconnected(ClickerClient client);
+}
@@ -0,0 +1,331 @@
+package ca.ubc.clicker.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.server.ServerConfig;
+import ca.ubc.clicker.server.io.EncodedMessage;
+
+/**
+ * Bounded queue of output waiting to be written to a client. When a client
+ * falls behind and the queue fills up, the configured SlowConsumerPolicy
+ * decides what gives. Keeps counters so slow clients can be identified.
+ *
+ * Configured with clientQueueCapacity and slowConsumerPolicy (drop-oldest,
+ * coalesce or disconnect). Coalescing merges choices messages up to
+ * MAX_MERGED_BYTES, then drops the oldest like drop-oldest, so a client
+ * that stays behind can't grow a message without end. With conflateChoices=true, choices messages that
+ * are waiting back to back are delivered as one in which only the latest
+ * choice per clicker id remains; other messages are never reordered.
+ *
+ */
+public class ClientOutputQueue {
+	private static Logger log = LogManager.getLogger();
+	
+	public static final int DEFAULT_CAPACITY = 1000;
+	public static final SlowConsumerPolicy DEFAULT_POLICY = SlowConsumerPolicy.COALESCE;
+	public static final int MAX_MERGED_BYTES = 16 * 1024; // choices aren't merged into a message past this
+	
+	private static volatile int defaultCapacity = DEFAULT_CAPACITY;
+	private static volatile SlowConsumerPolicy defaultPolicy = DEFAULT_POLICY;
+	private static volatile boolean defaultConflate = false;
+	
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final ArrayDeque<EncodedMessage> queue;
+	private final int capacity;
+	private final SlowConsumerPolicy policy;
+	private final boolean conflate;
+	
+	// lag counters, guarded by lock
+	private long enqueued = 0;
+	private long dequeued = 0;
+	private long dropped = 0;
+	private long coalesced = 0;
+	private long conflated = 0;
+	private int maxDepth = 0;
+	private boolean mergeable = false; // choices messages may be queued back to back, see coalesce
+	
+	public ClientOutputQueue() {
+		this(defaultCapacity, defaultPolicy, defaultConflate);
+	}
+	
+	public ClientOutputQueue(int capacity, SlowConsumerPolicy policy, boolean conflate) {
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+		this.queue = new ArrayDeque<EncodedMessage>();
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.conflate = conflate;
+	}
+	
+	public static void configure(ServerConfig config) {
+		defaultCapacity = config.getInt("clientQueueCapacity", DEFAULT_CAPACITY);
+		String policy = config.getString("slowConsumerPolicy", DEFAULT_POLICY.name());
+		try {
+			defaultPolicy = SlowConsumerPolicy.fromString(policy);
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown slowConsumerPolicy " + policy + ", using " + DEFAULT_POLICY);
+			defaultPolicy = DEFAULT_POLICY;
+		}
+		defaultConflate = config.getBoolean("conflateChoices", false);
+	}
+	
+	// queues a message. returns false if the queue is full and the client should be disconnected.
+	public boolean offer(EncodedMessage message) {
+		lock.lock();
+		try {
+			if (queue.size() >= capacity) {
+				if (policy == SlowConsumerPolicy.COALESCE && mergeIntoTail(message)) {
+					return true;
+				}
+				if (!makeRoom()) {
+					return false;
+				}
+			}
+			
+			EncodedMessage tail = queue.peekLast();
+			if (tail != null && tail.isChoices() && message.isChoices()) {
+				mergeable = true;
+			}
+			queue.addLast(message);
+			enqueued++;
+			if (queue.size() > maxDepth) {
+				maxDepth = queue.size();
+			}
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// applies the policy to a full queue. returns false if the client should be disconnected instead.
+	private boolean makeRoom() {
+		switch (policy) {
+		case DISCONNECT:
+			return false;
+		case COALESCE:
+			if (!coalesce()) { // nothing to merge, drop instead
+				dropOldest();
+			}
+			return true;
+		case DROP_OLDEST:
+		default:
+			dropOldest();
+			return true;
+		}
+	}
+	
+	// drops the oldest message, but not a protocol switch, without which the client couldn't read what follows
+	private void dropOldest() {
+		Iterator<EncodedMessage> messages = queue.iterator();
+		while (messages.hasNext()) {
+			if (!messages.next().isProtocolSwitch()) {
+				messages.remove();
+				dropped++;
+				return;
+			}
+		}
+	}
+	
+	// merges a choices message into the last queued message if that is also choices and has room
+	private boolean mergeIntoTail(EncodedMessage message) {
+		EncodedMessage tail = queue.peekLast();
+		if (tail == null || !tail.isChoices() || !message.isChoices() || tail.length() + message.length() > MAX_MERGED_BYTES) {
+			return false;
+		}
+		
+		List<EncodedMessage> pair = new ArrayList<EncodedMessage>(2);
+		pair.add(tail);
+		pair.add(message);
+		queue.pollLast();
+		queue.addLast(EncodedMessage.mergeChoices(pair));
+		enqueued++;
+		coalesced++;
+		notEmpty.signal();
+		return true;
+	}
+	
+	// merges every run of adjacent choices messages into as few as MAX_MERGED_BYTES allows. returns false if there were none.
+	// only scans the queue if a run may have formed since the last time, so a client that stays
+	// behind doesn't cost every broadcast a pass over its whole queue.
+	private boolean coalesce() {
+		if (!mergeable) {
+			return false;
+		}
+		mergeable = false; // dropping from the front or merging into the tail never starts a run
+		
+		ArrayDeque<EncodedMessage> rebuilt = new ArrayDeque<EncodedMessage>(queue.size());
+		List<EncodedMessage> run = new ArrayList<EncodedMessage>();
+		int runBytes = 0;
+		int merges = 0;
+		for (EncodedMessage curr : queue) {
+			if (curr.isChoices()) {
+				if (runBytes + curr.length() > MAX_MERGED_BYTES) {
+					merges += endRun(run, rebuilt);
+					runBytes = 0;
+				}
+				run.add(curr);
+				runBytes += curr.length();
+				continue;
+			}
+			merges += endRun(run, rebuilt);
+			runBytes = 0;
+			rebuilt.addLast(curr);
+		}
+		merges += endRun(run, rebuilt);
+		
+		if (merges == 0) {
+			return false;
+		}
+		
+		queue.clear();
+		queue.addAll(rebuilt);
+		coalesced += merges;
+		return true;
+	}
+	
+	// adds the run of choices messages to the queue as a single message, returns number of messages saved
+	private int endRun(List<EncodedMessage> run, ArrayDeque<EncodedMessage> rebuilt) {
+		int size = run.size();
+		if (size == 1) {
+			rebuilt.addLast(run.get(0));
+		} else if (size > 1) {
+			rebuilt.addLast(EncodedMessage.mergeChoices(run));
+		}
+		run.clear();
+		return Math.max(0, size - 1);
+	}
+	
+	// waits for the next message
+	public EncodedMessage take() throws InterruptedException {
+		EncodedMessage message;
+		List<EncodedMessage> run;
+		lock.lockInterruptibly();
+		try {
+			while (queue.isEmpty()) {
+				notEmpty.await();
+			}
+			message = queue.pollFirst();
+			dequeued++;
+			run = pollChoicesRun(message);
+		} finally {
+			lock.unlock();
+		}
+		return run == null ? message : EncodedMessage.conflateChoices(run);
+	}
+	
+	// next message or null if there is none
+	public EncodedMessage poll() {
+		EncodedMessage message;
+		List<EncodedMessage> run;
+		lock.lock();
+		try {
+			message = queue.pollFirst();
+			if (message == null) {
+				return null;
+			}
+			dequeued++;
+			run = pollChoicesRun(message);
+		} finally {
+			lock.unlock();
+		}
+		return run == null ? message : EncodedMessage.conflateChoices(run);
+	}
+	
+	// when conflating, removes the choices messages directly behind first so they
+	// can be delivered together. null if there are none. lock must be held.
+	private List<EncodedMessage> pollChoicesRun(EncodedMessage first) {
+		if (!conflate || !first.isChoices()) {
+			return null;
+		}
+		EncodedMessage next = queue.peekFirst();
+		if (next == null || !next.isChoices()) {
+			return null;
+		}
+		
+		List<EncodedMessage> run = new ArrayList<EncodedMessage>();
+		run.add(first);
+		while (next != null && next.isChoices()) {
+			run.add(queue.pollFirst());
+			dequeued++;
+			next = queue.peekFirst();
+		}
+		conflated += run.size() - 1;
+		return run;
+	}
+	
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return queue.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void clear() {
+		lock.lock();
+		try {
+			queue.clear();
+			mergeable = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public SlowConsumerPolicy getPolicy() {
+		return policy;
+	}
+	
+	// snapshot of the lag counters
+	public Stats getStats() {
+		lock.lock();
+		try {
+			return new Stats(queue.size(), maxDepth, enqueued, dequeued, dropped, coalesced, conflated);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public static class Stats {
+		public final int depth;
+		public final int maxDepth;
+		public final long enqueued;
+		public final long dequeued;
+		public final long dropped;
+		public final long coalesced;
+		public final long conflated;
+		
+		Stats(int depth, int maxDepth, long enqueued, long dequeued, long dropped, long coalesced, long conflated) {
+			this.depth = depth;
+			this.maxDepth = maxDepth;
+			this.enqueued = enqueued;
+			this.dequeued = dequeued;
+			this.dropped = dropped;
+			this.coalesced = coalesced;
+			this.conflated = conflated;
+		}
+	}
+}
@@ -1,42 +1,74 @@
 package ca.ubc.clicker.client;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
-public class ClientOutputThread extends Thread {
-	private PrintWriter out;
-	private final BlockingQueue<String> queue;
+import ca.ubc.clicker.server.ServerThreads;
+import ca.ubc.clicker.server.io.EncodedMessage;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+import ca.ubc.clicker.server.util.LatencyHistogram;
+
+public class ClientOutputThread implements Runnable {
+	private static final Counter messagesWritten = Metrics.counter("client.messagesWritten");
+	private static final Counter bytesWritten = Metrics.counter("client.bytesWritten");
+	private static final LatencyHistogram writeTime = Metrics.histogram("client.writeTime"); // blocked writing to the socket
+	
+	private final int id;
+	private volatile Thread thread; // null until started
+	private OutputStream out;
+	private final ClientOutputQueue queue;
+	
+	private final ClickerClient client;
+	
+	public ClientOutputThread(int id, OutputStream outStream, ClickerClient client) {
+		this.id = id;
+		this.client = client;
+		out = outStream;
+		queue = client.getOutputQueue();
+	}
+	
+	// started once the client is constructed, so it can't see the client half built
+	public void start() {
+		thread = ServerThreads.start(this, "ClientOutputThread" + id);
+	}
+	
+	public boolean isAlive() {
+		Thread current = thread;
+		return current != null && current.isAlive();
+	}
 	
-	public ClientOutputThread(int id, OutputStream outStream) {
-		super("ClientOutputThread" + id);
-		out = new PrintWriter(outStream, true);
-		queue = new LinkedBlockingQueue<String>();
-		start();
+	// stops waiting for output once the client is gone
+	public void shutdown() {
+		Thread current = thread;
+		if (current != null) {
+			current.interrupt();
+		}
 	}
 	
 	@Override
 	public void run() {
-		// read in from the message queue and output across the socket
+		// read in from the message queue and output across the socket.
+		// messages are already encoded, so the shared bytes are written as is.
+		boolean binary = false; // writing binary frames, see BinaryFrames
 		try {
 			while (true) {
-				out.println(queue.take());
-				
-				// checkError true if we failed to write to output stream 
-				// indicating socket closed.
-				if(out.checkError()) {
-					break;
+				EncodedMessage message = queue.take();
+				long start = System.nanoTime();
+				int length = message.writeTo(out, binary);
+				if (message.isProtocolSwitch()) {
+					binary = message.isBinaryAfter();
 				}
+				writeTime.record((System.nanoTime() - start) / 1000);
+				messagesWritten.increment();
+				bytesWritten.add(length);
 			}
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			// client closed
+		} catch (IOException e) {
+			// failed to write to output stream indicating socket closed.
 		}
 		
-		out.close();
-	}
-	
-	public BlockingQueue<String> getMessageQueue() {
-		return queue;
+		client.close();
 	}
 }
@@ -0,0 +1,17 @@
+package ca.ubc.clicker.client;
+
+/**
+ * What a client's output queue does when it is full because the client isn't
+ * reading fast enough.
+ *
+ */
+public enum SlowConsumerPolicy {
+	DROP_OLDEST, // discard the oldest queued message
+	COALESCE,    // merge queued choices messages together, dropping the oldest if nothing can be merged
+	DISCONNECT;  // close the connection
+
+	// parses the config form, e.g. drop-oldest
+	public static SlowConsumerPolicy fromString(String value) {
+		return valueOf(value.trim().toUpperCase().replace('-', '_'));
+	}
+}
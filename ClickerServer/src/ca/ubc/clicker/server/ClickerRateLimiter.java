@@ -0,0 +1,87 @@
+package ca.ubc.clicker.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.server.util.RateLimit;
+
+/**
+ * A RateLimit bucket for every clicker id that sent choices recently. The
+ * buckets are in a ConcurrentHashMap, so sessions checking votes at the same
+ * time don't wait on each other. Counts the votes each offender had dropped.
+ *
+ * Once there are more than sweepSize buckets, the full ones (clickers that
+ * haven't voted for a while) are forgotten, so made up ids can't grow the map
+ * without bound.
+ *
+ */
+public class ClickerRateLimiter {
+	private static Logger log = LogManager.getLogger();
+	private static final int SWEEP_SIZE = 4096;
+	private static final int LOG_EVERY = 1000; // votes dropped between warnings about an offender
+
+	private final RateLimit limit;
+	private final ConcurrentHashMap<String, Bucket> buckets;
+	private final AtomicInteger sweepSize;
+
+	public ClickerRateLimiter(RateLimit limit) {
+		this.limit = limit;
+		this.buckets = new ConcurrentHashMap<String, Bucket>();
+		this.sweepSize = new AtomicInteger(SWEEP_SIZE);
+	}
+
+	// takes a vote from the clicker's bucket as of now (System.nanoTime), false if it is over the limit
+	public boolean tryAcquire(String id, long now) {
+		Bucket bucket = buckets.get(id);
+		if (bucket == null) {
+			Bucket created = new Bucket();
+			bucket = buckets.putIfAbsent(id, created);
+			if (bucket == null) {
+				bucket = created;
+				sweepIfFull(now);
+			}
+		}
+
+		if (limit.tryAcquire(bucket, now)) {
+			return true;
+		}
+		long dropped = bucket.dropped.incrementAndGet();
+		if (dropped == 1 || dropped % LOG_EVERY == 0) {
+			log.warn("Clicker " + id + " is over its rate limit (" + limit + "), " + dropped + " votes dropped");
+		}
+		return false;
+	}
+
+	private void sweepIfFull(long now) {
+		int size = sweepSize.get();
+		if (buckets.size() <= size || !sweepSize.compareAndSet(size, Integer.MAX_VALUE)) {
+			return; // not full, or another thread is sweeping
+		}
+		for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext();) {
+			if (limit.isFull(i.next(), now)) {
+				i.remove();
+			}
+		}
+		// if most clickers are still active, wait for twice as many before sweeping again
+		sweepSize.set(Math.max(SWEEP_SIZE, buckets.size() * 2));
+	}
+
+	public RateLimit getLimit() {
+		return limit;
+	}
+
+	// the arrival time of the clicker's next vote, see RateLimit
+	private static class Bucket extends AtomicLong {
+		private static final long serialVersionUID = 1L;
+		final AtomicLong dropped = new AtomicLong();
+
+		Bucket() {
+			super(Long.MIN_VALUE); // full, like RateLimit.newBucket
+		}
+	}
+}
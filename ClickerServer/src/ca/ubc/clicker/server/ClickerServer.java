@@ -4,11 +4,19 @@ package ca.ubc.clicker.server;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -16,17 +24,32 @@ import org.apache.logging.log4j.Logger;
 import ca.ubc.clicker.BaseClickerApp;
 import ca.ubc.clicker.Vote;
 import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.client.ClientOutputQueue;
 import ca.ubc.clicker.driver.exception.ClickerException;
 import ca.ubc.clicker.enums.ButtonEnum;
 import ca.ubc.clicker.enums.FrequencyEnum;
 import ca.ubc.clicker.server.filters.Filter;
+import ca.ubc.clicker.server.filters.StructuredFilter;
 import ca.ubc.clicker.server.gson.GsonFactory;
 import ca.ubc.clicker.server.io.BaseIOServer;
+import ca.ubc.clicker.server.io.ChoicesEncoder;
+import ca.ubc.clicker.server.io.EncodedMessage;
 import ca.ubc.clicker.server.io.IOServer;
+import ca.ubc.clicker.server.io.NioIOServer;
+import ca.ubc.clicker.server.journal.ClickJournal;
+import ca.ubc.clicker.server.journal.ClickRecord;
+import ca.ubc.clicker.server.journal.JournalRecovery;
+import ca.ubc.clicker.server.journal.SessionState;
 import ca.ubc.clicker.server.messages.ChoiceMessage;
+import ca.ubc.clicker.server.messages.ClientStatsMessage;
 import ca.ubc.clicker.server.messages.ErrorMessage;
 import ca.ubc.clicker.server.messages.ResponseMessage;
 import ca.ubc.clicker.server.messages.StatusMessage;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Gauge;
+import ca.ubc.clicker.server.metrics.Metrics;
+import ca.ubc.clicker.server.relay.RelayServer;
+import ca.ubc.clicker.server.util.ClickerIdMap;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
@@ -36,6 +59,11 @@ import com.google.gson.JsonElement;
  * clicker base station and broadcasts them to listeners (clients). Also takes input on
  * standard in and over the socket from the clients.
  * 
+ * Votes, commands and broadcasts belong to a ClickerSession. There is always
+ * the default session, with the base station's instructors; sessions=name,...
+ * adds more, each with its own instructors, input thread and tally, which
+ * clients join with the "join session" command.
+ * 
  * Usage: java ClickerServer [instructor-id [channel1 channel2 [port]]]
  * 
  * @author pbeshai
@@ -44,15 +72,35 @@ import com.google.gson.JsonElement;
 public class ClickerServer extends BaseClickerApp implements IOServer {
 	private static Logger log = LogManager.getLogger();
 	private static Logger clicksLog = LogManager.getLogger("clicks");
+	private static final Counter acceptedVotes = Metrics.counter("votes.accepted");
+	private static final Counter ignoredVotes = Metrics.counter("votes.ignored"); // while not accepting choices
+	private static final Counter duplicateVotes = Metrics.counter("votes.duplicates"); // repeats dropped, see DuplicateSuppressor
 	
 	public static final int DEFAULT_PORT = 4444;
+	public static final long DEFAULT_METRICS_INTERVAL = 5000;
 	
 	private static final String CONFIG_PROPERTIES_FILE = "config.properties";
+	private static final String IO_BLOCKING = "blocking";
+	private static final String IO_NIO = "nio";
+	private static final String INPUT_QUEUE_LINKED = "linked";
+	private static final String INPUT_QUEUE_RING = "ring";
+	private static final String CHOICES = "choices"; // the type of a choices broadcast
 	
-	private final BlockingQueue<ClickerInput> inputQueue;
 	private int serverPort = DEFAULT_PORT;
 	private CommandController commandController;
 	private IOServer io;
+	private PollScheduler pollScheduler;
+	private final Map<String, ClickerSession> sessions; // by name, the default session first
+	private final ClickerSession defaultSession;
+	private final Map<String, ClickerSession> instructorSessions; // by instructor id
+	private volatile boolean joinedSessions = false; // a client has joined a session other than the default
+	private long tallyInterval;
+	private long inputBatchDelay;
+	private long metricsInterval;
+	private final Set<ClickerClient> metricsSubscribers = Collections.newSetFromMap(new ConcurrentHashMap<ClickerClient, Boolean>());
+	private ClickJournal journal; // null unless journal=true
+	private ClickerRateLimiter clickerRateLimiter; // null unless clickerRateLimit is set
+	private SessionState recovered; // restored once the filters are loaded
 	
 	public ClickerServer() throws InterruptedException, IOException, ClickerException {
 		this(null);
@@ -68,19 +116,226 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 	
 	public ClickerServer(String instructorId, FrequencyEnum channel1, FrequencyEnum channel2, Integer port)
 			throws InterruptedException, IOException, ClickerException {
+		this(instructorId, channel1, channel2, port, new ServerConfig());
+	}
+	
+	public ClickerServer(String instructorId, FrequencyEnum channel1, FrequencyEnum channel2, Integer port, ServerConfig config)
+			throws InterruptedException, IOException, ClickerException {
 		super(instructorId, channel1, channel2, "Clicker Server", String.format("I:%s Ch:%s%s", instructorId, channel1.name(), channel2.name()));
 		
 		if (port != null) this.serverPort = port;
 		
-		inputQueue = new LinkedBlockingQueue<ClickerInput>();
+		ServerThreads.configure(config);
+		ClientOutputQueue.configure(config);
+		RateLimits.configure(config);
+		if (RateLimits.getClickerLimit() != null) {
+			clickerRateLimiter = new ClickerRateLimiter(RateLimits.getClickerLimit());
+		}
+		pollScheduler = new PollScheduler(config);
+		tallyInterval = config.getLong("tallyInterval", 0);
+		inputBatchDelay = config.getLong("inputBatchDelay", 0);
+		metricsInterval = config.getLong("metricsInterval", DEFAULT_METRICS_INTERVAL);
+		
+		sessions = createSessions(instructorId, config);
+		defaultSession = sessions.get(ClickerSession.DEFAULT_NAME);
+		instructorSessions = new HashMap<String, ClickerSession>();
+		for (ClickerSession session : sessions.values()) {
+			for (String id : session.getInstructorIds()) {
+				instructorSessions.put(id, session);
+			}
+		}
 		commandController = new CommandController(this);
-		io = new BaseIOServer(serverPort, this);
+		io = createIOServer(config, serverPort, this);
+		registerGauges();
+		
+		if (config.getBoolean("journal", false)) {
+			if (config.getBoolean("journalRecover", true)) {
+				recovered = JournalRecovery.recover(ClickJournal.directory(config));
+			}
+			journal = createJournal(config, recovered);
+		}
+	}
+	
+	// the default session has the base station's instructor and the others in the instructorId list with it. sessions=name,...
+	// adds a session for each name, with the instructors listed in session.<name>
+	private Map<String, ClickerSession> createSessions(String instructorId, ServerConfig config) {
+		List<String> defaultIds = new ArrayList<String>();
+		if (instructorId != null) {
+			defaultIds.add(instructorId);
+			List<String> configured = split(config.getString("instructorId", ""));
+			if (configured.contains(instructorId)) {
+				for (String id : configured) {
+					if (!defaultIds.contains(id)) {
+						defaultIds.add(id);
+					}
+				}
+			}
+		}
+		
+		long duplicateWindow = config.getLong("duplicateWindow", 0);
+		Map<String, ClickerSession> sessions = new LinkedHashMap<String, ClickerSession>();
+		sessions.put(ClickerSession.DEFAULT_NAME,
+				new ClickerSession(this, ClickerSession.DEFAULT_NAME, defaultIds, createInputQueue(config), true, duplicateWindow));
+		Set<String> assigned = new HashSet<String>(defaultIds);
+		for (String name : split(config.getString("sessions", ""))) {
+			if (sessions.containsKey(name)) {
+				log.warn("Ignoring session " + name + ", there already is one");
+				continue;
+			}
+			List<String> ids = new ArrayList<String>();
+			for (String id : split(config.getString("session." + name, ""))) {
+				if (assigned.add(id)) {
+					ids.add(id);
+				} else {
+					log.warn("Instructor " + id + " is already in another session, leaving it out of " + name);
+				}
+			}
+			sessions.put(name, new ClickerSession(this, name, ids, createInputQueue(config), false, duplicateWindow));
+			log.info("Session " + name + ", instructors " + ids);
+		}
+		return Collections.unmodifiableMap(sessions);
+	}
+	
+	private static List<String> split(String list) {
+		List<String> items = new ArrayList<String>();
+		for (String item : list.split(",")) {
+			item = item.trim();
+			if (!item.isEmpty()) {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+	
+	// io=blocking (default) uses two threads per client, io=nio multiplexes clients over a few selector threads.
+	// the io server passes client input to composedServer. also used by RelayServer.
+	public static IOServer createIOServer(ServerConfig config, int port, IOServer composedServer) {
+		String transport = config.getString("io", IO_BLOCKING);
+		if (IO_NIO.equalsIgnoreCase(transport)) {
+			return new NioIOServer(port, composedServer, config.getInt("nioThreads", NioIOServer.DEFAULT_EVENT_LOOPS));
+		}
+		if (!IO_BLOCKING.equalsIgnoreCase(transport)) {
+			log.warn("Unknown io setting " + transport + ", using " + IO_BLOCKING);
+		}
+		return new BaseIOServer(port, composedServer);
+	}
+	
+	// inputQueue=linked (default) is an unbounded LinkedBlockingQueue, inputQueue=ring a preallocated lock-free ring
+	private InputQueue createInputQueue(ServerConfig config) {
+		String type = config.getString("inputQueue", INPUT_QUEUE_LINKED);
+		if (INPUT_QUEUE_RING.equalsIgnoreCase(type)) {
+			String strategy = config.getString("inputWaitStrategy", RingInputQueue.DEFAULT_WAIT_STRATEGY.name());
+			WaitStrategy waitStrategy;
+			try {
+				waitStrategy = WaitStrategy.fromString(strategy);
+			} catch (IllegalArgumentException e) {
+				log.warn("Unknown inputWaitStrategy " + strategy + ", using " + RingInputQueue.DEFAULT_WAIT_STRATEGY);
+				waitStrategy = RingInputQueue.DEFAULT_WAIT_STRATEGY;
+			}
+			RingInputQueue ring = new RingInputQueue(config.getInt("inputQueueCapacity", RingInputQueue.DEFAULT_CAPACITY), waitStrategy);
+			log.info("Input queue: ring of " + ring.getCapacity() + ", " + waitStrategy + " wait strategy");
+			return ring;
+		}
+		if (!INPUT_QUEUE_LINKED.equalsIgnoreCase(type)) {
+			log.warn("Unknown inputQueue setting " + type + ", using " + INPUT_QUEUE_LINKED);
+		}
+		return new LinkedInputQueue();
+	}
+	
+	private void registerGauges() {
+		Metrics.gauge("clients", new Gauge() { public long value() {
+			return getNumClients();
+		} });
+		// messages waiting to be written, over all clients and for the furthest behind
+		Metrics.gauge("clients.queued", new Gauge() { public long value() {
+			long queued = 0;
+			for (ClickerClient client : getClients()) {
+				queued += client.getOutputQueue().size();
+			}
+			return queued;
+		} });
+		Metrics.gauge("clients.maxQueued", new Gauge() { public long value() {
+			long max = 0;
+			for (ClickerClient client : getClients()) {
+				max = Math.max(max, client.getOutputQueue().size());
+			}
+			return max;
+		} });
+		// summed over the sessions
+		Metrics.gauge("input.queueDepth", new Gauge() { public long value() {
+			long depth = 0;
+			for (ClickerSession session : sessions.values()) {
+				depth += session.getInputQueue().size();
+			}
+			return depth;
+		} });
+		Metrics.gauge("input.queueStalls", new Gauge() { public long value() {
+			long stalls = 0;
+			for (ClickerSession session : sessions.values()) {
+				stalls += session.getInputQueue().getStalls();
+			}
+			return stalls;
+		} });
+		Metrics.gauge("poll.interval", new Gauge() { public long value() {
+			return pollScheduler.getInterval();
+		} });
+	}
+	
+	// journal clicks in binary instead of logging them, writing out what is left on exit
+	private ClickJournal createJournal(ServerConfig config, SessionState recovered) throws IOException {
+		final ClickJournal journal = new ClickJournal(config, recovered);
+		Runtime.getRuntime().addShutdownHook(new Thread("ClickJournalShutdown") {
+			@Override
+			public void run() {
+				journal.close();
+			}
+		});
+		return journal;
+	}
+	
+	// filters may start accepting votes when they are initialized, so the recovered session is restored after them
+	@Override
+	public void filtersLoaded() {
+		if (recovered != null && !recovered.isEmpty()) {
+			try {
+				restore(recovered);
+			} catch (Exception e) {
+				log.error("Could not restore the recovered session: " + e.getMessage());
+			}
+		}
+		recovered = null;
+	}
+	
+	// continues a session recovered from the journal: votes accepted or not as before and the tally of the current question.
+	// the journal only has the default session.
+	private void restore(SessionState state) throws InterruptedException, IOException, ClickerException {
+		if (state.isAccepting() && !isAcceptingVotes()) {
+			startAcceptingVotes();
+		} else if (!state.isAccepting() && isAcceptingVotes()) {
+			stopAcceptingVotes();
+		}
+		
+		ClickerIdMap choices = state.getChoices();
+		for (int slot = 0; slot < choices.capacity(); slot++) {
+			String id = choices.keyAt(slot);
+			if (id == null) {
+				continue;
+			}
+			ButtonEnum button = SessionState.button(choices.valueAt(slot));
+			defaultSession.getTally().record(id, button, choices.timeAt(slot));
+			
+			// voting may have been started again since, which begins a new question in the journal, so carry the choices over
+			journal.click(choices.timeAt(slot), id, button, ClickRecord.SOURCE_RECOVERY, false);
+		}
+		log.info("Restored session: " + (state.isAccepting() ? "accepting" : "not accepting") + " choices, question " + state.getQuestions()
+				+ " started " + new Date(state.getQuestionStart()) + ", " + choices.size() + " choices");
 	}
 	
 	public void init() throws IOException {
-		// start the input listener
-		@SuppressWarnings("unused")
-		ServerInputThread inputListenerThread = new ServerInputThread(this, inputQueue); 
+		// start the input listener and tally broadcasts of each session
+		for (ClickerSession session : sessions.values()) {
+			session.init(inputBatchDelay, tallyInterval);
+		}
 		
 		// start thread for reading stdin input
 		@SuppressWarnings("unused")
@@ -90,6 +345,12 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		// start thread for reading votes from the base station
 		@SuppressWarnings("unused")
 		ClickerThread clickerThread = new ClickerThread(this);
+		
+		// push the metrics to subscribed clients
+		if (metricsInterval > 0) {
+			@SuppressWarnings("unused")
+			MetricsBroadcastThread metricsThread = new MetricsBroadcastThread(this, metricsInterval);
+		}
 	}
 	
 	public void run() throws IOException, InterruptedException {
@@ -103,19 +364,87 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		input(message, null);
 	}
 	
-	// public interface for others to queue up inputs
+	// public interface for others to queue up inputs, run by the client's session
 	@Override
 	public void input(String message, ClickerClient client) {
-		try {
-			inputQueue.add(new ClickerInput(message, client));
-		} catch (IllegalStateException e) {
-			log.error("Warning: no space left in server input queue");
+		getSession(client).input(message, client);
+	}
+	
+	// the base station's, i.e. the default session's. also polls the base station again right away so the first votes aren't delayed
+	@Override
+	public synchronized void startAcceptingVotes() throws InterruptedException, IOException, ClickerException {
+		super.startAcceptingVotes();
+		defaultSession.newQuestion();
+		pollScheduler.reset();
+		journalEvent(ClickRecord.START);
+	}
+	
+	@Override
+	public synchronized void stopAcceptingVotes() throws InterruptedException, IOException, ClickerException {
+		super.stopAcceptingVotes();
+		journalEvent(ClickRecord.STOP);
+	}
+	
+	private void journalEvent(byte type) {
+		if (journal != null) {
+			journal.event(type, System.currentTimeMillis());
+		}
+	}
+	
+	// e.g. for filters to register their own commands
+	public CommandController getCommandController() {
+		return commandController;
+	}
+	
+	// null unless clickerRateLimit is set
+	public ClickerRateLimiter getClickerRateLimiter() {
+		return clickerRateLimiter;
+	}
+	
+	// the default session's
+	public TallyEngine getTally() {
+		return defaultSession.getTally();
+	}
+	
+	public PollScheduler getPollScheduler() {
+		return pollScheduler;
+	}
+	
+	public ClickerSession getDefaultSession() {
+		return defaultSession;
+	}
+	
+	// null if there is no session with that name
+	public ClickerSession getSession(String name) {
+		return sessions.get(name);
+	}
+	
+	// the session a client's input goes to and that it gets broadcasts from, the default one if it hasn't joined another
+	public ClickerSession getSession(ClickerClient client) {
+		ClickerSession session = client == null ? null : client.getSession();
+		return session == null ? defaultSession : session;
+	}
+	
+	public Collection<ClickerSession> getSessions() {
+		return sessions.values();
+	}
+	
+	// moves a client to another session. input it sent before this keeps going to the previous one.
+	public synchronized ClickerSession joinSession(ClickerClient client, String name) {
+		ClickerSession session = sessions.get(name);
+		if (session == null) {
+			throw new IllegalArgumentException("Unknown session " + name);
 		}
+		if (!session.isDefault()) {
+			joinedSessions = true; // before it leaves, so default session broadcasts start checking who is in it
+		}
+		getSession(client).leave(client);
+		session.join(client);
+		return session;
 	}
 	
-	// interpret input (e.g. "enable choices" to start accepting votes), to be used by the input listener
-	void runInput(ClickerInput input) {
-		commandController.runCommand(input);
+	boolean hasJoinedSessions() {
+		return joinedSessions;
 	}
 	
 	// sends output to all the clients
@@ -144,22 +473,104 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		io.output(message, client);
 	}
 	
+	// sends a message to all the clients if client == null, otherwise just to client. serialized after the filters run.
+	@Override
+	public void output(ResponseMessage message, ClickerClient client) {
+		output(message, client, true);
+	}
+	
+	// printLocal logs the message as the io server serialized it
+	public void output(ResponseMessage message, ClickerClient client, boolean printLocal) {
+		if (printLocal && log.isInfoEnabled()) {
+			io.outputLogged(message, client, null, client != null ? "output for " + client : "output");
+		} else {
+			io.output(message, client);
+		}
+	}
+	
+	// sends a message to the clients in a session
+	public void outputToSession(ResponseMessage message, ClickerSession session, boolean printLocal) {
+		Iterable<ClickerClient> recipients = session.recipients();
+		if (recipients == null) { // everyone is in it
+			output(message, null, printLocal);
+			return;
+		}
+		
+		if (printLocal && log.isInfoEnabled()) {
+			io.outputLogged(message, null, recipients, "output for " + session);
+		} else {
+			output(message, recipients);
+		}
+	}
+	
+	// sends an encoded message to the clients in a session, without logging it
+	private void outputToSession(EncodedMessage message, ClickerSession session) {
+		io.output(message, session.recipients());
+	}
+	
+	@Override
+	public void output(ResponseMessage message, Iterable<ClickerClient> clients) {
+		io.output(message, clients);
+	}
+	
+	@Override
+	public void outputLogged(ResponseMessage message, ClickerClient client, Iterable<ClickerClient> clients, String label) {
+		io.outputLogged(message, client, clients, label);
+	}
+	
+	@Override
+	public boolean isOutputFiltered(String type) {
+		return io.isOutputFiltered(type);
+	}
+	
+	@Override
+	public void output(EncodedMessage message, Iterable<ClickerClient> clients) {
+		io.output(message, clients);
+	}
+	
 	public int getNumClients() {
 		return io.getNumClients();
 	}
 	
-	private ChoiceMessage choiceMessage(Vote vote) {
-		return choiceMessage(vote.getId(), vote.getButton().name());
+	@Override
+	public Iterable<ClickerClient> getClients() {
+		return io.getClients();
+	}
+	
+	// output backlog of every client, those furthest behind first
+	public List<ClientStatsMessage> getClientStats() {
+		List<ClientStatsMessage> stats = new ArrayList<ClientStatsMessage>();
+		for (ClickerClient client : getClients()) {
+			ClientOutputQueue.Stats queueStats = client.getOutputQueue().getStats();
+			ClientStatsMessage message = new ClientStatsMessage();
+			message.id = client.getId();
+			message.queued = queueStats.depth;
+			message.maxQueued = queueStats.maxDepth;
+			message.sent = queueStats.dequeued;
+			message.dropped = queueStats.dropped;
+			message.coalesced = queueStats.coalesced;
+			message.conflated = queueStats.conflated;
+			message.rateLimited = client.getRateLimited();
+			stats.add(message);
+		}
+		
+		Collections.sort(stats, new Comparator<ClientStatsMessage>() {
+			@Override
+			public int compare(ClientStatsMessage a, ClientStatsMessage b) {
+				return b.queued.compareTo(a.queued);
+			}
+		});
+		return stats;
 	}
 	
-	private ChoiceMessage choiceMessage(String id, String button) {
+	private ChoiceMessage choiceMessage(Vote vote, boolean instructor, long time) {
 		ChoiceMessage message = new ChoiceMessage();
-		message.id = id;
-		message.choice = button;
-		if (instructorId.equals(id)) {
+		message.id = vote.getId();
+		message.choice = vote.getButton().name();
+		if (instructor) {
 			message.instructor = true;
 		}
-		message.time = new Date().getTime();
+		message.time = time;
 		
 		return message;
 	}
@@ -169,6 +580,10 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		if (message == null || message.choice == null) {
 			return null;
 		}
+		if (message.id == null) { // the tally, sessions and repeats are all keyed by it
+			log.error("Discarding vote " + message.choice + " without an id");
+			return null;
+		}
 		
 		String voteButton = message.choice.toUpperCase();
 		try { 
@@ -183,8 +598,10 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 	
 	// json is serialized collection of VoteMessage objects
 	public List<Vote> votesFromJson(JsonElement choicesJson) {
-		ChoiceMessage[] messages = gson().fromJson(choicesJson, ChoiceMessage[].class);
-		
+		return votesFromChoices(gson().fromJson(choicesJson, ChoiceMessage[].class));
+	}
+	
+	public List<Vote> votesFromChoices(ChoiceMessage[] messages) {
 		if (messages == null) {
 			return null;
 		}
@@ -204,44 +621,179 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 	// use List<Vote> since it's easy to get from the base station. 
 	// only outputs instructor votes if accepting votes is false
 	public void outputChoices(List<Vote> votes) {
+		outputChoices(votes, ClickRecord.SOURCE_BASE_STATION);
+	}
+	
+	// source is where the votes came from as recorded in the click journal, e.g. ClickRecord.SOURCE_CLIENT.
+	// an instructor's votes go to their session, everyone else's to the default session (the base station's)
+	public void outputChoices(List<Vote> votes, byte source) {
 		if (votes == null || votes.isEmpty()) {
 			return;
 		}
+		if (sessions.size() == 1) {
+			outputChoices(defaultSession, votes, source);
+			return;
+		}
 		
+		Map<ClickerSession, List<Vote>> routed = new LinkedHashMap<ClickerSession, List<Vote>>();
+		for (Vote vote : votes) {
+			ClickerSession session = instructorSessions.get(vote.getId());
+			if (session == null) {
+				session = defaultSession;
+			}
+			List<Vote> sessionVotes = routed.get(session);
+			if (sessionVotes == null) {
+				sessionVotes = new ArrayList<Vote>();
+				routed.put(session, sessionVotes);
+			}
+			sessionVotes.add(vote);
+		}
+		for (Map.Entry<ClickerSession, List<Vote>> entry : routed.entrySet()) {
+			outputChoices(entry.getKey(), entry.getValue(), source);
+		}
+	}
+	
+	// broadcasts votes to a session's clients, dropping repeats if the session does. only the default session is journaled.
+	// unless a filter has to see them, the votes are written straight to the bytes the clients are sent (see ChoicesEncoder)
+	public void outputChoices(ClickerSession session, List<Vote> votes, byte source) {
+		if (votes == null || votes.isEmpty()) {
+			return;
+		}
 		
-		// convert to voteMessage list
-		List<ChoiceMessage> messages = new ArrayList<ChoiceMessage>(votes.size());
+		// only output instructor votes if accepting votes is false
+		boolean accepting = session.isAcceptingVotes();
+		long time = System.currentTimeMillis(); // one clock read for the batch
+		ChoicesEncoder encoder = encodable(votes) ? ChoicesEncoder.begin() : null;
+		List<ChoiceMessage> messages = encoder == null ? new ArrayList<ChoiceMessage>(votes.size()) : null;
+		int accepted = 0;
 		for (Vote vote : votes) {
-			// only output instructor votes if accepting votes is false
-			if (isAcceptingVotes() || instructorId.equals(vote.getId())) {
-				clicksLog.info("{}:{}", vote.getId(), vote.getButton());
-				messages.add(choiceMessage(vote));
+			String id = vote.getId();
+			boolean instructor = session.isInstructor(id);
+			if (!accepting && !instructor) {
+				ignoredVotes.increment();
+				continue;
+			}
+			if (!instructor && session.isRepeat(id, vote.getButton(), time)) {
+				duplicateVotes.increment();
+				continue;
+			}
+			
+			if (journal != null && session.isDefault()) {
+				journal.click(time, id, vote.getButton(), source, instructor);
+			} else if (session.isDefault()) {
+				clicksLog.info("{}:{}", id, vote.getButton());
+			} else {
+				clicksLog.info("{}:{}:{}", session.getName(), id, vote.getButton());
 			}
+			if (!instructor) {
+				session.getTally().record(id, vote.getButton(), time);
+			}
+			if (encoder != null) {
+				encoder.add(id, vote.getButton().name(), instructor, time);
+			} else {
+				messages.add(choiceMessage(vote, instructor, time));
+			}
+			accepted++;
 		}
+		acceptedVotes.add(accepted);
 		
-		if (messages.isEmpty()) { // abort if no votes 
+		if (accepted == 0) { // abort if no votes 
+			return;
+		}
+		if (encoder != null) {
+			outputToSession(encoder.finish(), session);
 			return;
 		}
 		
 		ResponseMessage message = new ResponseMessage();
-		message.type = "choices";
+		message.type = CHOICES;
 		message.data = messages;
-		output(gson().toJson(message), null, false);
+		outputToSession(message, session, false);
+	}
+	
+	// true if the votes don't need ChoiceMessages: no filter has to see them and gson wouldn't escape any of their ids
+	private boolean encodable(List<Vote> votes) {
+		if (io.isOutputFiltered(CHOICES)) {
+			return false;
+		}
+		for (Vote vote : votes) {
+			if (!ChoicesEncoder.isPlain(vote.getId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public void outputTally() {
+		outputTally(defaultSession);
+	}
+	
+	public void outputTally(ClickerSession session) {
+		ResponseMessage message = new ResponseMessage();
+		message.type = "tally";
+		message.data = session.getTally().toMessage();
+		outputToSession(message, session, false);
+	}
+	
+	// sends the metrics to the subscribed clients, forgetting those that disconnected
+	public void outputMetrics() {
+		ResponseMessage message = null;
+		for (ClickerClient client : metricsSubscribers) {
+			if (!client.isAlive()) {
+				metricsSubscribers.remove(client);
+				continue;
+			}
+			if (message == null) {
+				message = new ResponseMessage();
+				message.type = "metrics";
+				message.data = Metrics.snapshot();
+			}
+			output(message, client, false);
+		}
+	}
+	
+	// returns false if metrics are not pushed (metricsInterval=0) or there is no client to push to
+	public boolean subscribeMetrics(ClickerClient client) {
+		if (metricsInterval <= 0 || client == null) {
+			return false;
+		}
+		metricsSubscribers.add(client);
+		return true;
+	}
+	
+	public void unsubscribeMetrics(ClickerClient client) {
+		if (client != null) {
+			metricsSubscribers.remove(client);
+		}
 	}
 	
 	public void outputError(String errorStr, String command) {
+		outputError(errorStr, command, defaultSession);
+	}
+	
+	public void outputError(String errorStr, String command, ClickerSession session) {
 		ErrorMessage message = new ErrorMessage();
 		message.error = errorStr;
 		message.command = command;
-		output(gson().toJson(message));
+		outputToSession(message, session, true);
 	}
 	
 	public StatusMessage getStatus() {
+		return getStatus(defaultSession);
+	}
+	
+	public StatusMessage getStatus(ClickerSession session) {
 		StatusMessage status = new StatusMessage();
-		status.acceptingChoices = isAcceptingVotes();
-		status.numClients = getNumClients();
-		status.instructorId = getInstructorId();
+		status.session = session.getName();
+		status.acceptingChoices = session.isAcceptingVotes();
+		status.numClients = session.getNumClients();
+		status.instructorId = session.getInstructorId();
 		status.time = new Date().getTime();
+		status.pollInterval = pollScheduler.getInterval();
+		status.pollLatency = TimeUnit.NANOSECONDS.toMicros(pollScheduler.getAverageLatency());
+		status.pollLatencyMax = TimeUnit.NANOSECONDS.toMicros(pollScheduler.getMaxLatency());
+		status.inputQueueDepth = session.getInputQueue().size();
+		status.inputQueueStalls = session.getInputQueue().getStalls();
 		
 		return status;
 	}
@@ -255,6 +807,10 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		return filter.initialize(this);
 	}
 	
+	public boolean initializeFilter(StructuredFilter filter) {
+		return filter.initialize(this);
+	}
+	
 	/**
 	 * Usage: java ClickerServer [instructor-id [channel1 channel2 [port]]]
 	 * @param args
@@ -270,9 +826,6 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 			config.load(new FileInputStream(CONFIG_PROPERTIES_FILE));
 			port = Integer.valueOf(config.getProperty("port", String.valueOf(DEFAULT_PORT)));
 			instructorId = config.getProperty("instructorId", instructorId);
-			if (instructorId.indexOf(',') != -1) { // if a comma separated, take the first
-				instructorId = instructorId.substring(0, instructorId.indexOf(','));
-			}
 			channel1 = FrequencyEnum.valueOf(config.getProperty("channel1", DEFAULT_CHANNEL_1.name()));
 			channel2 = FrequencyEnum.valueOf(config.getProperty("channel2", DEFAULT_CHANNEL_2.name()));
 		} catch (IOException e) {
@@ -282,6 +835,7 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		// override from arguments
 		if (args.length > 0) {
 			instructorId = args[0];
+			config.setProperty("instructorId", instructorId);
 		}
 		if (args.length > 2) {
 			channel1 = FrequencyEnum.valueOf(args[1]);
@@ -290,6 +844,13 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		if (args.length > 3) {
 			port = Integer.parseInt(args[3]);
 		}
+		
+		// no base station, just clients of another server
+		String relay = config.getProperty("relay", "").trim();
+		if (!relay.isEmpty()) {
+			RelayServer.create(relay, port, new ServerConfig(config)).run();
+			return;
+		}
 	
 		log.info("Starting Clicker Server...");
 		log.info("Instructor ID: " + instructorId);
@@ -297,7 +858,9 @@ public class ClickerServer extends BaseClickerApp implements IOServer {
 		log.info("Channel2: " + channel2);
 		log.info("Port: " + port);
 		
-		ClickerServer server = new ClickerServer(instructorId, channel1, channel2, port);
+		// the first instructor runs the base station, the rest of a comma separated list are in its session too
+		String baseStationInstructorId = instructorId.split(",")[0].trim();
+		ClickerServer server = new ClickerServer(baseStationInstructorId, channel1, channel2, port, new ServerConfig(config));
 		server.run();
 	}
 }
\ No newline at end of file
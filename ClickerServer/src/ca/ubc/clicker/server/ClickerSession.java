@@ -0,0 +1,228 @@
+package ca.ubc.clicker.server;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.driver.exception.ClickerException;
+import ca.ubc.clicker.enums.ButtonEnum;
+
+/**
+ * A course or room hosted by the server: its instructor clickers, whether it
+ * is accepting choices, its tally and the clients that joined it. Each session
+ * runs its input on its own ServerInputThread, so a busy session doesn't hold
+ * up the others.
+ *
+ * The default session is the base station's. It has the instructor ids from
+ * the instructorId setting and every client that hasn't joined another
+ * session, so a server with one session works as it always has.
+ *
+ * With a duplicateWindow, each session drops its clickers' repeated votes
+ * (see DuplicateSuppressor), except the instructors'.
+ *
+ */
+public class ClickerSession {
+	public static final String DEFAULT_NAME = "default";
+
+	private final ClickerServer server;
+	private final String name;
+	private final List<String> instructorIds;
+	private final boolean defaultSession;
+	private final InputQueue inputQueue;
+	private final TallyEngine tally;
+	private final DuplicateSuppressor duplicates; // null unless repeats are dropped
+	private final Set<ClickerClient> members; // joined clients, except in the default session
+	private final Iterable<ClickerClient> recipients;
+	private volatile boolean accepting = false; // the default session's is the base station's
+
+	ClickerSession(ClickerServer server, String name, List<String> instructorIds, InputQueue inputQueue, boolean defaultSession,
+			long duplicateWindow) {
+		this.server = server;
+		this.name = name;
+		this.instructorIds = Collections.unmodifiableList(instructorIds);
+		this.defaultSession = defaultSession;
+		this.inputQueue = inputQueue;
+		this.tally = new TallyEngine();
+		this.duplicates = duplicateWindow > 0 ? new DuplicateSuppressor(duplicateWindow) : null;
+		this.members = Collections.newSetFromMap(new ConcurrentHashMap<ClickerClient, Boolean>());
+		this.recipients = new Iterable<ClickerClient>() {
+			@Override
+			public Iterator<ClickerClient> iterator() {
+				return memberIterator();
+			}
+		};
+	}
+
+	// starts the thread running this session's input and, if tallyInterval > 0, the one broadcasting its tally
+	void init(long inputBatchDelay, long tallyInterval) {
+		@SuppressWarnings("unused")
+		ServerInputThread inputThread = new ServerInputThread(this, inputQueue, inputBatchDelay);
+
+		if (tallyInterval > 0) {
+			@SuppressWarnings("unused")
+			TallyBroadcastThread tallyThread = new TallyBroadcastThread(server, this, tallyInterval);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<String> getInstructorIds() {
+		return instructorIds;
+	}
+
+	// the first instructor id, null if it has none
+	public String getInstructorId() {
+		return instructorIds.isEmpty() ? null : instructorIds.get(0);
+	}
+
+	public boolean isInstructor(String clickerId) {
+		return instructorIds.contains(clickerId);
+	}
+
+	public boolean isDefault() {
+		return defaultSession;
+	}
+
+	public TallyEngine getTally() {
+		return tally;
+	}
+
+	// true if a clicker's vote repeats its last one closely enough to be dropped. not asked for instructors' votes.
+	boolean isRepeat(String clickerId, ButtonEnum button, long time) {
+		return duplicates != null && duplicates.isRepeat(clickerId, button, time);
+	}
+	
+	// a new question: clears the tally and the last votes repeats are compared to
+	void newQuestion() {
+		tally.reset();
+		if (duplicates != null) {
+			duplicates.reset();
+		}
+	}
+	
+	InputQueue getInputQueue() {
+		return inputQueue;
+	}
+
+	// queues input for this session's input thread
+	void input(String message, ClickerClient client) {
+		inputQueue.add(message, client);
+	}
+
+	// run by this session's input thread
+	void runInputs(List<ClickerInput> inputs) {
+		server.getCommandController().runCommands(this, inputs);
+	}
+
+	public boolean isAcceptingVotes() {
+		return defaultSession ? server.isAcceptingVotes() : accepting;
+	}
+
+	// the default session starts the base station, the others start a new question of their own
+	public void startAcceptingVotes() throws InterruptedException, IOException, ClickerException {
+		if (defaultSession) {
+			server.startAcceptingVotes();
+			return;
+		}
+		synchronized (this) {
+			accepting = true;
+			newQuestion();
+		}
+	}
+
+	public void stopAcceptingVotes() throws InterruptedException, IOException, ClickerException {
+		if (defaultSession) {
+			server.stopAcceptingVotes();
+			return;
+		}
+		accepting = false;
+	}
+
+	void join(ClickerClient client) {
+		if (!defaultSession) {
+			members.add(client);
+		}
+		client.setSession(this);
+	}
+
+	void leave(ClickerClient client) {
+		members.remove(client);
+	}
+
+	// the clients to broadcast to, null for every client when no one has joined another session
+	Iterable<ClickerClient> recipients() {
+		if (defaultSession && !server.hasJoinedSessions()) {
+			return null;
+		}
+		return recipients;
+	}
+
+	// the connected clients in this session
+	public int getNumClients() {
+		Iterable<ClickerClient> clients = recipients();
+		if (clients == null) {
+			return server.getNumClients();
+		}
+		int count = 0;
+		for (Iterator<ClickerClient> i = clients.iterator(); i.hasNext(); i.next()) {
+			count++;
+		}
+		return count;
+	}
+	
+	private Iterator<ClickerClient> memberIterator() {
+		return new MemberIterator(defaultSession ? server.getClients().iterator() : members.iterator());
+	}
+
+	// skips clients that disconnected (forgetting those that had joined) and, for the default session, those in other sessions
+	private class MemberIterator implements Iterator<ClickerClient> {
+		private final Iterator<ClickerClient> clients;
+		private ClickerClient next;
+
+		MemberIterator(Iterator<ClickerClient> clients) {
+			this.clients = clients;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && clients.hasNext()) {
+				ClickerClient client = clients.next();
+				if (!client.isAlive()) {
+					if (!defaultSession) {
+						clients.remove();
+					}
+				} else if (!defaultSession || server.getSession(client) == ClickerSession.this) {
+					next = client;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public ClickerClient next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ClickerClient client = next;
+			next = null;
+			return client;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "session " + name;
+	}
+}
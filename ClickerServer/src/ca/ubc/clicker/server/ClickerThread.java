@@ -9,25 +9,32 @@ import org.apache.logging.log4j.Logger;
 
 import ca.ubc.clicker.Vote;
 import ca.ubc.clicker.driver.exception.ClickerException;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+import ca.ubc.clicker.server.util.LatencyHistogram;
 
 /**
- * Continuously reads votes from the base station
+ * Continuously reads votes from the base station, as often as the PollScheduler says
  * @author pbeshai
  *
  */
-public class ClickerThread extends Thread {
+public class ClickerThread implements Runnable {
 	private static Logger log = LogManager.getLogger();
-	private final static int SLEEP_TIME = 150;
+	private static final Counter polls = Metrics.counter("poll.count");
+	private static final Counter polledVotes = Metrics.counter("poll.votes");
+	private static final LatencyHistogram pollTime = Metrics.histogram("poll.time"); // every poll
+	private static final LatencyHistogram pollLatency = Metrics.histogram("poll.latency"); // polls with votes, until broadcast
 	
 	ClickerServer server;
 	String instructorId;
+	private final PollScheduler scheduler;
 	
 	
 	ClickerThread(ClickerServer server) {
-		super("ClickerThread");
 		this.server = server;
 		this.instructorId = server.getInstructorId();
-		start();
+		this.scheduler = server.getPollScheduler();
+		ServerThreads.start(this, "ClickerThread");
 	}
 	
 	@Override
@@ -36,12 +43,24 @@ public class ClickerThread extends Thread {
 		while (true) {
 			try {
 					
+				boolean receivedVotes = false;
 				if (server.isBaseStationConnected()) {
+					long pollStart = System.nanoTime();
 					votes = server.getDriver().requestVotes();
+					receivedVotes = votes != null && !votes.isEmpty();
+					polls.increment();
+					pollTime.record((System.nanoTime() - pollStart) / 1000);
 				
 					server.outputChoices(votes);
+					if (receivedVotes) {
+						long latency = System.nanoTime() - pollStart;
+						scheduler.recordLatency(latency);
+						pollLatency.record(latency / 1000);
+						polledVotes.add(votes.size());
+					}
 				}
-				Thread.sleep(SLEEP_TIME);			
+				scheduler.polled(receivedVotes);
+				scheduler.await();
 			} catch (InterruptedException e) {
 				log.error("Interrupted: "+e.getMessage());
 				e.printStackTrace();
@@ -0,0 +1,24 @@
+package ca.ubc.clicker.server;
+
+import ca.ubc.clicker.client.ClickerClient;
+
+/**
+ * A command clients can send, e.g. {"command":"status"}. Instantiated
+ * anonymously and registered with the CommandController, which is also how
+ * filters and extensions add their own commands.
+ *
+ */
+public abstract class Command {
+	private final String name; // what the user types to activate
+	
+	public Command(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	// client is null for input that didn't come from a client (e.g. stdin)
+	public abstract void run(ParsedCommand command, ClickerClient client) throws Exception;
+}
@@ -1,20 +1,28 @@
 package ca.ubc.clicker.server;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import ca.ubc.clicker.Vote;
 import ca.ubc.clicker.client.ClickerClient;
 import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.io.EncodedMessage;
+import ca.ubc.clicker.server.journal.ClickRecord;
+import ca.ubc.clicker.server.messages.ChoiceMessage;
 import ca.ubc.clicker.server.messages.CommandResponseMessage;
+import ca.ubc.clicker.server.messages.ErrorMessage;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+import ca.ubc.clicker.server.util.LatencyHistogram;
+import ca.ubc.clicker.server.util.OverLimitPolicy;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
 
 
 /**
@@ -29,115 +37,342 @@ public class CommandController {
 	public static final String COMMAND_STOP_VOTING = "disable choices";
 	public static final String COMMAND_STATUS = "status";
 	public static final String COMMAND_CHOOSE = "choose";
+	public static final String COMMAND_CLIENTS = "clients";
+	public static final String COMMAND_TALLY = "tally";
+	public static final String COMMAND_METRICS = "metrics";
+	public static final String COMMAND_SUBSCRIBE_METRICS = "subscribe metrics";
+	public static final String COMMAND_UNSUBSCRIBE_METRICS = "unsubscribe metrics";
+	public static final String COMMAND_JOIN_SESSION = "join session";
+	public static final String COMMAND_SESSIONS = "sessions";
+	public static final String COMMAND_PROTOCOL = "protocol";
+	public static final String COMMAND_RELAY = "relay";
+	public static final String PROTOCOL_JSON = "json";
+	public static final String PROTOCOL_BINARY = "binary";
+	
+	private static final Counter commandCount = Metrics.counter("command.count");
+	private static final Counter commandErrors = Metrics.counter("command.errors");
+	private static final Counter invalidCommands = Metrics.counter("command.invalid");
+	private static final Counter clientVotes = Metrics.counter("command.votes"); // received with choose
+	private static final Counter rateLimitedVotes = Metrics.counter("votes.rateLimited"); // over clickerRateLimit
+	private static final LatencyHistogram commandTime = Metrics.histogram("command.time"); // not including batched choose
 	
 	private final ClickerServer server;
-	private final JsonParser parser;
-	private final List<Command> commands;
+	private final Map<String, Command> commands;
+	private Command chooseCommand;
 	
 	public CommandController(ClickerServer server) {
 		this.server = server;
-		this.parser = new JsonParser();
-		this.commands = new LinkedList<Command>();
+		this.commands = new ConcurrentHashMap<String, Command>();
 		registerCommands();
 	}
 	
-	private Gson gson() {
-		return GsonFactory.gson();
+	public void outputCommandResponse(String command, Object data, ClickerClient client, boolean printLocal) {
+		CommandResponseMessage message = new CommandResponseMessage();
+		message.command = command;
+		message.data = data;
+		server.output(message, client, printLocal);
 	}
-
-	private void outputCommandResponse(String command, Object data, ClickerClient client, boolean printLocal) {
+	
+	// the response to the client that sent the command, with the command's id
+	public void outputCommandResponse(ParsedCommand command, Object data, boolean printLocal) {
+		CommandResponseMessage message = new CommandResponseMessage();
+		message.command = command.getName();
+		message.id = command.getId();
+		message.data = data;
+		server.output(message, command.getClient(), printLocal);
+	}
+	
+	// sends the response to every client in the session
+	public void outputSessionResponse(String command, Object data, ClickerSession session, boolean printLocal) {
 		CommandResponseMessage message = new CommandResponseMessage();
 		message.command = command;
 		message.data = data;
-		server.output(gson().toJson(message), client, printLocal);
+		server.outputToSession(message, session, printLocal);
+	}
+	
+	// adds a command, replacing any existing command with the same name. can be used by filters.
+	public void registerCommand(Command command) {
+		if (commands.put(command.getName(), command) != null) {
+			log.info("Replaced command " + command.getName());
+		}
 	}
 	
 	// Oh, how I dream of anonymous functions. Java 8 has them!
+	// replies echo the command's id. responses broadcast to the session don't, as they aren't only for the sender.
 	private void registerCommands() {
 		// does not broadcast
-		commands.add(new Command(COMMAND_PING) { void run(JsonElement args, ClickerClient client) throws Exception {
-			outputCommandResponse(COMMAND_PING, null, client, false);
+		registerCommand(new Command(COMMAND_PING) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			outputCommandResponse(command, null, false);
 		} });
 		
-		// start voting
-		commands.add(new Command(COMMAND_START_VOTING) { void run(JsonElement args, ClickerClient client) throws Exception {
-			server.startAcceptingVotes();
-			outputCommandResponse(COMMAND_START_VOTING, true, null, true);
+		// start voting in the client's session
+		registerCommand(new Command(COMMAND_START_VOTING) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			ClickerSession session = server.getSession(client);
+			session.startAcceptingVotes();
+			outputSessionResponse(COMMAND_START_VOTING, true, session, true);
 		} });
 		
-		// stop voting
-		commands.add(new Command(COMMAND_STOP_VOTING) { void run(JsonElement args, ClickerClient client) throws Exception {
-			server.stopAcceptingVotes();
-			outputCommandResponse(COMMAND_STOP_VOTING, true, null, true);
+		// stop voting in the client's session
+		registerCommand(new Command(COMMAND_STOP_VOTING) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			ClickerSession session = server.getSession(client);
+			session.stopAcceptingVotes();
+			outputSessionResponse(COMMAND_STOP_VOTING, true, session, true);
 		} });
 		
-		// get status - instructor id, accepting votes, number of clients
+		// get status - session, instructor id, accepting votes, number of clients
 		// does not broadcast
-		commands.add(new Command(COMMAND_STATUS) { void run(JsonElement args, ClickerClient client) throws Exception {
-			outputCommandResponse(COMMAND_STATUS, server.getStatus(), client, true);
+		registerCommand(new Command(COMMAND_STATUS) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			outputCommandResponse(command, server.getStatus(server.getSession(client)), true);
 		} });
 		
-		// click received (as opposed to via clicker base station)
-		commands.add(new Command(COMMAND_CHOOSE) { void run(JsonElement choicesJson, ClickerClient client) throws Exception {
-			server.outputChoices(server.votesFromJson(choicesJson));
+		// get current number of clickers on each button in the client's session
+		// does not broadcast
+		registerCommand(new Command(COMMAND_TALLY) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			outputCommandResponse(command, server.getSession(client).getTally().toMessage(), false);
+		} });
+		
+		// move the client to the session named in the arguments, responding with its status
+		registerCommand(new Command(COMMAND_JOIN_SESSION) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			if (client == null) {
+				throw new IllegalArgumentException("Only clients can join sessions");
+			}
+			ClickerSession session = server.joinSession(client, command.getArguments(String.class));
+			outputCommandResponse(command, server.getStatus(session), true);
 		} });
+		
+		// get the names of the sessions, the default first
+		// does not broadcast
+		registerCommand(new Command(COMMAND_SESSIONS) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			List<String> names = new ArrayList<String>();
+			for (ClickerSession session : server.getSessions()) {
+				names.add(session.getName());
+			}
+			outputCommandResponse(command, names, false);
+		} });
+		
+		// get output backlog per client, to find the ones falling behind
+		// does not broadcast
+		registerCommand(new Command(COMMAND_CLIENTS) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			outputCommandResponse(command, server.getClientStats(), false);
+		} });
+		
+		// get the server's metrics
+		// does not broadcast
+		registerCommand(new Command(COMMAND_METRICS) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			outputCommandResponse(command, Metrics.snapshot(), false);
+		} });
+		
+		// receive a metrics message every metricsInterval ms
+		registerCommand(new Command(COMMAND_SUBSCRIBE_METRICS) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			outputCommandResponse(command, server.subscribeMetrics(client), false);
+		} });
+		
+		registerCommand(new Command(COMMAND_UNSUBSCRIBE_METRICS) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			server.unsubscribeMetrics(client);
+			outputCommandResponse(command, true, false);
+		} });
+		
+		// switch the output to this client to binary frames or back to json, see BinaryFrames.
+		// the response is the last message in the old format; it skips the filters so nothing can change it.
+		registerCommand(new Command(COMMAND_PROTOCOL) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			if (client == null) {
+				throw new IllegalArgumentException("Only clients can switch protocols");
+			}
+			client.output(protocolResponse(command.getArguments(String.class), command.getId()));
+		} });
+		
+		// sent by a RelayServer when it connects, see RateLimits.
+		// does not broadcast
+		registerCommand(new Command(COMMAND_RELAY) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			if (client == null) {
+				throw new IllegalArgumentException("Only clients can be relays");
+			}
+			client.setRelay();
+			outputCommandResponse(command, true, false);
+		} });
+		
+		// click received (as opposed to via clicker base station)
+		chooseCommand = new Command(COMMAND_CHOOSE) { public void run(ParsedCommand command, ClickerClient client) throws Exception {
+			server.outputChoices(server.getSession(client), chooseVotes(command), ClickRecord.SOURCE_CLIENT);
+		} };
+		registerCommand(chooseCommand);
 	}
 	
+	// the response to the protocol command, which switches the client's output once it is written. also used by RelayServer.
+	public static EncodedMessage protocolResponse(String protocol, String id) {
+		if (!PROTOCOL_BINARY.equals(protocol) && !PROTOCOL_JSON.equals(protocol)) {
+			throw new IllegalArgumentException("Unknown protocol " + protocol);
+		}
+		CommandResponseMessage response = new CommandResponseMessage();
+		response.command = COMMAND_PROTOCOL;
+		response.id = id;
+		response.data = protocol;
+		return EncodedMessage.encode(GsonFactory.gson().toJson(response)).thenSwitchProtocol(PROTOCOL_BINARY.equals(protocol));
+	}
 	
-	public void runCommand(ClickerInput input) {
-		String message = input.message; // is a CommandMessage object (JSON)
-		ClickerClient client = input.client;
-		String name = null;
-		JsonElement args = null;
-
-		// deserialize as a generic json obj so we can interpret the arguments later.
-		try {
-			JsonObject jsonObj = parser.parse(message).getAsJsonObject();
-			name = jsonObj.get("command").getAsString();
-			args = jsonObj.get("arguments");
-		} catch (JsonSyntaxException e) {
-			log.error("JSON error running command "+message+": " + e.getMessage());
-			return;
-		} catch (IllegalStateException e) {
-			log.error("Error running command "+message+": " + e.getMessage());
-			return;
+	private List<Vote> chooseVotes(ParsedCommand command) throws IOException {
+		List<Vote> votes = server.votesFromChoices(command.getArguments(ChoiceMessage[].class));
+		if (votes != null) {
+			clientVotes.add(votes.size());
+			votes = withinRateLimit(votes, command.getClient());
+		}
+		return votes;
+	}
+	
+	// the votes whose clickers are within their rate limit (see RateLimits), telling the client about the others if they are rejected
+	private List<Vote> withinRateLimit(List<Vote> votes, ClickerClient client) {
+		ClickerRateLimiter limiter = server.getClickerRateLimiter();
+		if (limiter == null) {
+			return votes;
 		}
 		
-				
+		long now = System.nanoTime();
+		List<Vote> allowed = null; // only copied once a vote is dropped
+		for (int i = 0; i < votes.size(); i++) {
+			Vote vote = votes.get(i);
+			if (limiter.tryAcquire(vote.getId(), now)) {
+				if (allowed != null) {
+					allowed.add(vote);
+				}
+				continue;
+			}
+			
+			rateLimitedVotes.increment();
+			if (allowed == null) {
+				allowed = new ArrayList<Vote>(votes.subList(0, i));
+			}
+			if (client != null && RateLimits.getPolicy() == OverLimitPolicy.REJECT) {
+				ErrorMessage error = new ErrorMessage();
+				error.error = "Rate limit exceeded for clicker " + vote.getId();
+				error.command = COMMAND_CHOOSE;
+				server.output(error, client, false);
+			}
+		}
+		return allowed == null ? votes : allowed;
+	}
+	
+	// reads the command name, null if the input isn't a valid command
+	public ParsedCommand parse(ClickerInput input) {
 		try {
-			for (Command command : commands) {
-				if (command.name.equals(name)) {
-					if (!name.equals(COMMAND_PING) && !name.equals(COMMAND_CHOOSE)) {
-						String logStr = "[command] " + name;
-						if (client != null) {
-							name += " from " + client.toString();
-						}
-						if (args != null) {
-							logStr += " " + args.toString();
-						}
-						log.info(logStr);
+			return ParsedCommand.parse(input.message, input.client);
+		} catch (IOException e) {
+			invalidCommands.increment();
+			log.error("JSON error running command "+input.message+": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	public void runCommand(ClickerInput input) {
+		ParsedCommand parsed = parse(input);
+		if (parsed != null) {
+			runCommand(parsed);
+		}
+	}
+	
+	// runs the inputs in order, except that consecutive choose commands are
+	// combined and output as a single batch of choices in the session
+	public void runCommands(ClickerSession session, List<ClickerInput> inputs) {
+		List<Vote> votes = new ArrayList<Vote>();
+		List<ParsedCommand> batched = new ArrayList<ParsedCommand>(); // the choose commands the votes came from
+		for (ClickerInput input : inputs) {
+			ParsedCommand parsed = parse(input);
+			if (parsed == null) {
+				continue;
+			}
+			
+			// only batch if choose hasn't been replaced by another command
+			if (COMMAND_CHOOSE.equals(parsed.getName()) && commands.get(COMMAND_CHOOSE) == chooseCommand) {
+				commandCount.increment();
+				try {
+					List<Vote> parsedVotes = chooseVotes(parsed);
+					if (parsedVotes != null) {
+						votes.addAll(parsedVotes);
+						batched.add(parsed);
 					}
-					command.run(args, client);
-					return;
+				} catch (Exception e) {
+					commandFailed(parsed, e);
 				}
+				continue;
 			}
-
-			log.warn("Unable to find command for "+message);
+			
+			// anything else has to see the choices that came before it
+			if (!votes.isEmpty()) {
+				outputChoices(session, votes, batched);
+				votes = new ArrayList<Vote>();
+				batched.clear();
+			}
+			runCommand(parsed);
+		}
+		
+		if (!votes.isEmpty()) {
+			outputChoices(session, votes, batched);
+		}
+	}
+	
+	// broadcasts a batch of votes. if that fails, so does every choose command in the batch, as it would have on its own
+	private void outputChoices(ClickerSession session, List<Vote> votes, List<ParsedCommand> batched) {
+		try {
+			server.outputChoices(session, votes, ClickRecord.SOURCE_CLIENT);
 		} catch (Exception e) {
-			server.outputError(message, name);
-			System.out.println("Exception while running command "+message);
-			e.printStackTrace();
+			for (ParsedCommand parsed : batched) {
+				commandFailed(parsed, e);
+			}
 		}
 	}
 	
-	// class to be instantiated anonymously since we can't do anonymous functions
-	private abstract class Command {
-		String name; // what the user types to activate
+	public void runCommand(ParsedCommand parsed) {
+		String name = parsed.getName();
+		ClickerClient client = parsed.getClient();
 		
-		Command(String input) {
-			this.name = input;
+		try {
+			commandCount.increment();
+			Command command = commands.get(name);
+			if (command == null) {
+				invalidCommands.increment();
+				log.warn("Unable to find command for "+parsed.getMessage());
+				if (parsed.getId() != null) { // the sender is waiting for a reply
+					outputError(parsed, "Unknown command " + name);
+				}
+				return;
+			}
+			
+			if (!name.equals(COMMAND_PING) && !name.equals(COMMAND_CHOOSE)) {
+				String logStr = "[command] " + name;
+				if (client != null) {
+					logStr += " from " + client.toString();
+				}
+				JsonElement args = parsed.getArgumentsJson();
+				if (args != null) {
+					logStr += " " + args.toString();
+				}
+				log.info(logStr);
+			}
+			long start = System.nanoTime();
+			command.run(parsed, client);
+			commandTime.record((System.nanoTime() - start) / 1000);
+		} catch (Exception e) {
+			commandFailed(parsed, e);
 		}
-		
-		abstract void run(JsonElement args, ClickerClient client) throws Exception;
+	}
+	
+	private void commandFailed(ParsedCommand parsed, Exception e) {
+		commandErrors.increment();
+		outputError(parsed, parsed.getMessage());
+		System.out.println("Exception while running command "+parsed.getMessage());
+		e.printStackTrace();
+	}
+	
+	// errors for a command with an id only go to its sender, otherwise they are broadcast to the sender's session
+	private void outputError(ParsedCommand parsed, String error) {
+		ClickerClient client = parsed.getClient();
+		if (parsed.getId() == null || client == null) {
+			server.outputError(error, parsed.getName(), server.getSession(client));
+			return;
+		}
+		ErrorMessage message = new ErrorMessage();
+		message.error = error;
+		message.command = parsed.getName();
+		message.id = parsed.getId();
+		server.output(message, client, true);
 	}
 }
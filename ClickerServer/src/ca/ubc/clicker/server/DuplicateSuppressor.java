@@ -0,0 +1,45 @@
+package ca.ubc.clicker.server;
+
+import ca.ubc.clicker.enums.ButtonEnum;
+import ca.ubc.clicker.server.util.ClickerIdMap;
+
+/**
+ * Drops a vote that repeats the button its clicker last sent within window
+ * ms, since students hammer the button they already chose and every repeat
+ * would be logged and broadcast. A repeat after the window gets through and
+ * starts it again. Cleared for each question, so a clicker's first vote on
+ * it always gets through.
+ *
+ */
+public class DuplicateSuppressor {
+	private final long window;
+	private final ClickerIdMap latest; // each clicker's last vote that got through
+
+	public DuplicateSuppressor(long window) {
+		this.window = window;
+		this.latest = new ClickerIdMap();
+	}
+
+	// true if the vote should be dropped, otherwise it becomes the clicker's last vote.
+	// a vote without an id is dropped too, like ClickerServer does before it gets here.
+	public synchronized boolean isRepeat(String id, ButtonEnum button, long time) {
+		if (id == null) {
+			return true;
+		}
+		int choice = button.ordinal();
+		if (latest.get(id) == choice && time - latest.getTime(id) < window) {
+			return true;
+		}
+		latest.put(id, choice, time);
+		return false;
+	}
+
+	// start over, e.g. for a new question
+	public synchronized void reset() {
+		latest.clear();
+	}
+
+	public long getWindow() {
+		return window;
+	}
+}
@@ -0,0 +1,53 @@
+package ca.ubc.clicker.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ubc.clicker.client.ClickerClient;
+
+/**
+ * The inputs drained from an InputQueue in one go. The ClickerInput objects
+ * are reused from batch to batch, so they are only valid until clear().
+ *
+ */
+public class InputBatch extends AbstractList<ClickerInput> {
+	private final List<ClickerInput> inputs = new ArrayList<ClickerInput>();
+	private int size = 0;
+	
+	// appends an input, reusing a ClickerInput from an earlier batch if there is one
+	public void add(String message, ClickerClient client) {
+		if (size == inputs.size()) {
+			inputs.add(new ClickerInput(message, client));
+		} else {
+			ClickerInput input = inputs.get(size);
+			input.message = message;
+			input.client = client;
+		}
+		size++;
+	}
+	
+	@Override
+	public ClickerInput get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return inputs.get(index);
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	// drops the references so finished messages and closed clients can be collected
+	@Override
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			ClickerInput input = inputs.get(i);
+			input.message = null;
+			input.client = null;
+		}
+		size = 0;
+	}
+}
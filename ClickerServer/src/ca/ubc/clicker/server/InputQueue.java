@@ -0,0 +1,25 @@
+package ca.ubc.clicker.server;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.ubc.clicker.client.ClickerClient;
+
+/**
+ * Holds input from clients, stdin and filters until the ServerInputThread
+ * runs it. Any thread can add; only the input thread drains.
+ *
+ */
+public interface InputQueue {
+	
+	// queues the input, waiting for space if the queue is bounded and full
+	public void add(String message, ClickerClient client);
+	
+	// waits up to timeout (forever if negative) for input, then moves everything available into the batch. returns the number moved.
+	public int drainTo(InputBatch batch, long timeout, TimeUnit unit) throws InterruptedException;
+	
+	// inputs waiting to be run
+	public int size();
+	
+	// number of adds that had to wait because the queue was full
+	public long getStalls();
+}
@@ -0,0 +1,42 @@
+package ca.ubc.clicker.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ca.ubc.clicker.client.ClickerClient;
+
+/**
+ * The default unbounded InputQueue, a LinkedBlockingQueue of ClickerInputs.
+ *
+ */
+public class LinkedInputQueue implements InputQueue {
+	private final LinkedBlockingQueue<ClickerInput> queue = new LinkedBlockingQueue<ClickerInput>();
+	
+	@Override
+	public void add(String message, ClickerClient client) {
+		queue.add(new ClickerInput(message, client));
+	}
+	
+	@Override
+	public int drainTo(InputBatch batch, long timeout, TimeUnit unit) throws InterruptedException {
+		ClickerInput input = timeout < 0 ? queue.take() : queue.poll(timeout, unit);
+		int count = 0;
+		while (input != null) {
+			batch.add(input.message, input.client);
+			count++;
+			input = queue.poll();
+		}
+		return count;
+	}
+	
+	@Override
+	public int size() {
+		return queue.size();
+	}
+	
+	// never full
+	@Override
+	public long getStalls() {
+		return 0;
+	}
+}
@@ -0,0 +1,34 @@
+package ca.ubc.clicker.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sends the metrics to the clients that subscribed to them every interval ms
+ *
+ */
+public class MetricsBroadcastThread implements Runnable {
+	private static Logger log = LogManager.getLogger();
+	
+	private final ClickerServer server;
+	private final long interval;
+	
+	public MetricsBroadcastThread(ClickerServer server, long interval) {
+		this.server = server;
+		this.interval = interval;
+		
+		ServerThreads.start(this, "MetricsBroadcastThread");
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Thread.sleep(interval);
+				server.outputMetrics();
+			}
+		} catch (InterruptedException e) {
+			log.error("Interrupted: " + e.getMessage());
+		}
+	}
+}
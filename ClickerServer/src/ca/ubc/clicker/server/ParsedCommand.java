@@ -0,0 +1,177 @@
+package ca.ubc.clicker.server;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+
+import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.CommandMessage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * A command message (a CommandMessage in JSON) of which only the command name
+ * has been read. The arguments are deserialized on demand, straight from the
+ * message into the type the command wants, without building a JSON tree, and
+ * kept so asking again for the same type doesn't parse them again. If they are
+ * replaced, the message is serialized again the next time it is needed.
+ * The id a sender can give a command, to match it with its reply, is also
+ * only read when asked for.
+ *
+ */
+public class ParsedCommand {
+	private static final String COMMAND_FIELD = "command";
+	private static final String ARGUMENTS_FIELD = "arguments";
+	private static final String ID_FIELD = "id";
+	
+	private final String name;
+	private String message; // null once the arguments have been replaced, until it is serialized again
+	private final ClickerClient client;
+	private Object arguments; // the last arguments deserialized or set
+	private Type argumentsType;
+	private String id;
+	private boolean idRead = false;
+	
+	private ParsedCommand(String name, String message, ClickerClient client) {
+		this.name = name;
+		this.message = message;
+		this.client = client;
+	}
+	
+	// a new command, e.g. for a filter to pass on instead of the one it was given. it has no id.
+	public static ParsedCommand create(String name, Object arguments, ClickerClient client) {
+		ParsedCommand command = new ParsedCommand(name, null, client);
+		command.setArguments(arguments);
+		return command;
+	}
+	
+	// reads just the command name. throws IOException if the message is not a command.
+	public static ParsedCommand parse(String message, ClickerClient client) throws IOException {
+		JsonReader reader = reader(message);
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (COMMAND_FIELD.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+					return new ParsedCommand(reader.nextString(), message, client);
+				}
+				reader.skipValue();
+			}
+		} catch (IllegalStateException e) {
+			throw new IOException(e.getMessage());
+		}
+		throw new IOException("No command in message");
+	}
+	
+	private static JsonReader reader(String message) {
+		JsonReader reader = new JsonReader(new StringReader(message));
+		reader.setLenient(true); // accept the same loose JSON JsonParser did
+		return reader;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	// the original message, or the command serialized with its new arguments
+	public String getMessage() {
+		if (message == null) {
+			CommandMessage command = new CommandMessage();
+			command.command = name;
+			command.id = getId();
+			command.arguments = arguments;
+			message = GsonFactory.gson().toJson(command);
+		}
+		return message;
+	}
+	
+	// replaces the arguments, they are serialized when the message is next needed
+	public void setArguments(Object arguments) {
+		getId(); // read before the message is dropped
+		this.arguments = arguments;
+		this.argumentsType = arguments == null ? null : arguments.getClass();
+		this.message = null;
+	}
+	
+	// the id to echo in the reply, null if the sender didn't give one
+	public String getId() {
+		if (!idRead && message != null) {
+			id = readId(message);
+		}
+		idRead = true;
+		return id;
+	}
+	
+	private static String readId(String message) {
+		try {
+			JsonReader reader = reader(message);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (ID_FIELD.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+					return reader.nextString();
+				}
+				reader.skipValue();
+			}
+		} catch (IOException e) {
+			// malformed after the command name, so no id
+		} catch (IllegalStateException e) {
+			// malformed after the command name, so no id
+		}
+		return null;
+	}
+	
+	// null if the command was not sent by a client
+	public ClickerClient getClient() {
+		return client;
+	}
+	
+	// deserializes the arguments as type, null if there are none
+	@SuppressWarnings("unchecked")
+	public <T> T getArguments(Type type) throws IOException {
+		if (arguments != null && type.equals(argumentsType)) {
+			return (T) arguments;
+		}
+		
+		T parsed = null;
+		JsonReader reader = reader(getMessage());
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (ARGUMENTS_FIELD.equals(reader.nextName())) {
+				parsed = GsonFactory.gson().fromJson(reader, type);
+				break;
+			}
+			reader.skipValue();
+		}
+		
+		if (parsed != null) {
+			arguments = parsed;
+			argumentsType = type;
+		}
+		return parsed;
+	}
+	
+	public <T> T getArguments(Class<T> type) throws IOException {
+		return getArguments((Type) type);
+	}
+	
+	// the arguments as a generic tree, null if there are none
+	public JsonElement getArgumentsJson() throws IOException {
+		JsonReader reader = reader(getMessage());
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (ARGUMENTS_FIELD.equals(reader.nextName())) {
+				return new JsonParser().parse(reader);
+			}
+			reader.skipValue();
+		}
+		return null;
+	}
+	
+	@Override
+	public String toString() {
+		return getMessage();
+	}
+}
@@ -0,0 +1,91 @@
+package ca.ubc.clicker.server;
+
+/**
+ * Decides how long the ClickerThread waits between base station polls. While
+ * votes are arriving it polls every pollMinInterval ms (0 means back to back),
+ * each empty poll doubles the wait up to pollMaxInterval, and enabling choices
+ * goes straight back to the minimum.
+ *
+ * Also tracks the time from starting a poll to having broadcast its votes.
+ *
+ */
+public class PollScheduler {
+	public static final long DEFAULT_MIN_INTERVAL = 0;
+	public static final long DEFAULT_MAX_INTERVAL = 150;
+
+	// weight of the newest sample in the latency average
+	private static final double LATENCY_SMOOTHING = 0.2;
+
+	private final long minInterval;
+	private final long maxInterval;
+
+	private final Object lock = new Object();
+	private long interval; // guarded by lock
+	private boolean reset = false; // guarded by lock
+
+	private volatile long averageLatency = 0; // nanoseconds
+	private volatile long maxLatency = 0;
+
+	public PollScheduler(long minInterval, long maxInterval) {
+		this.minInterval = Math.max(0, minInterval);
+		this.maxInterval = Math.max(this.minInterval, maxInterval);
+		this.interval = this.maxInterval;
+	}
+
+	public PollScheduler(ServerConfig config) {
+		this(config.getLong("pollMinInterval", DEFAULT_MIN_INTERVAL), config.getLong("pollMaxInterval", DEFAULT_MAX_INTERVAL));
+	}
+
+	// adjusts the interval after a poll
+	public void polled(boolean receivedVotes) {
+		synchronized (lock) {
+			if (receivedVotes) {
+				interval = minInterval;
+			} else {
+				interval = Math.min(maxInterval, Math.max(1, interval * 2));
+			}
+		}
+	}
+
+	// waits until the next poll is due, or until reset() is called
+	public void await() throws InterruptedException {
+		synchronized (lock) {
+			if (!reset && interval > 0) {
+				lock.wait(interval);
+			}
+			reset = false;
+		}
+	}
+
+	// poll again right away and at the minimum interval, e.g. when choices are enabled
+	public void reset() {
+		synchronized (lock) {
+			interval = minInterval;
+			reset = true;
+			lock.notifyAll();
+		}
+	}
+
+	// time from the start of a poll until its votes were handed to the clients
+	public void recordLatency(long nanos) {
+		long average = averageLatency;
+		averageLatency = average == 0 ? nanos : (long) (average + LATENCY_SMOOTHING * (nanos - average));
+		if (nanos > maxLatency) {
+			maxLatency = nanos;
+		}
+	}
+
+	public long getInterval() {
+		synchronized (lock) {
+			return interval;
+		}
+	}
+
+	public long getAverageLatency() {
+		return averageLatency;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+}
@@ -0,0 +1,90 @@
+package ca.ubc.clicker.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.server.util.OverLimitPolicy;
+import ca.ubc.clicker.server.util.RateLimit;
+
+/**
+ * Token bucket limits on input, so one misbehaving client can't flood the
+ * input queue and starve everyone else:
+ *
+ *   connectionRateLimit  lines per second per connection (in bursts of connectionBurst),
+ *                        checked as each line arrives, before it is parsed
+ *   clickerRateLimit     choices per second per clicker id (in bursts of clickerBurst),
+ *                        checked as the votes are read from choose commands
+ *   relayRateLimit       lines per second per relay connection (in bursts of relayBurst),
+ *                        instead of connectionRateLimit once it sends the relay command
+ *
+ * 0 turns a limit off. rateLimitPolicy says whether input over a limit is
+ * dropped or rejected with an error. A relay's lines are always dropped, an
+ * error could only go to all of its clients.
+ *
+ */
+public class RateLimits {
+	private static Logger log = LogManager.getLogger();
+
+	public static final int DEFAULT_CONNECTION_BURST = 20;
+	public static final int DEFAULT_CLICKER_BURST = 5;
+	public static final int DEFAULT_RELAY_BURST = 200;
+	public static final OverLimitPolicy DEFAULT_POLICY = OverLimitPolicy.DROP;
+
+	private static volatile RateLimit connectionLimit = null;
+	private static volatile RateLimit clickerLimit = null;
+	private static volatile RateLimit relayLimit = null;
+	private static volatile OverLimitPolicy policy = DEFAULT_POLICY;
+
+	private RateLimits() {
+	}
+
+	public static void configure(ServerConfig config) {
+		connectionLimit = limit(config, "connectionRateLimit", "connectionBurst", DEFAULT_CONNECTION_BURST);
+		clickerLimit = limit(config, "clickerRateLimit", "clickerBurst", DEFAULT_CLICKER_BURST);
+		relayLimit = limit(config, "relayRateLimit", "relayBurst", DEFAULT_RELAY_BURST);
+
+		String value = config.getString("rateLimitPolicy", DEFAULT_POLICY.name());
+		try {
+			policy = OverLimitPolicy.fromString(value);
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown rateLimitPolicy " + value + ", using " + DEFAULT_POLICY);
+			policy = DEFAULT_POLICY;
+		}
+
+		if (connectionLimit != null || clickerLimit != null || relayLimit != null) {
+			log.info("Rate limits: connections " + (connectionLimit == null ? "unlimited" : connectionLimit) + ", clickers "
+					+ (clickerLimit == null ? "unlimited" : clickerLimit) + ", relays " + (relayLimit == null ? "unlimited" : relayLimit)
+					+ ", " + policy.name().toLowerCase() + " over them");
+		}
+	}
+
+	private static RateLimit limit(ServerConfig config, String rateKey, String burstKey, int defaultBurst) {
+		double rate;
+		try {
+			rate = Double.parseDouble(config.getString(rateKey, "0").trim());
+		} catch (NumberFormatException e) {
+			log.warn("Invalid " + rateKey + ", leaving it unlimited");
+			return null;
+		}
+		return rate > 0 ? new RateLimit(rate, config.getInt(burstKey, defaultBurst)) : null;
+	}
+
+	// null if connections are unlimited
+	public static RateLimit getConnectionLimit() {
+		return connectionLimit;
+	}
+
+	// null if relays are unlimited
+	public static RateLimit getRelayLimit() {
+		return relayLimit;
+	}
+
+	// null if clickers are unlimited
+	public static RateLimit getClickerLimit() {
+		return clickerLimit;
+	}
+
+	public static OverLimitPolicy getPolicy() {
+		return policy;
+	}
+}
@@ -0,0 +1,180 @@
+package ca.ubc.clicker.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ca.ubc.clicker.client.ClickerClient;
+
+/**
+ * A bounded multi-producer, single-consumer InputQueue on a preallocated ring
+ * of ClickerInput slots, so adding input takes no locks and allocates nothing.
+ * 
+ * A producer claims the next sequence number, waits if the ring is full (this
+ * counts as a stall), fills the slot and publishes it by storing its sequence
+ * number. The input thread copies published slots into its batch in sequence
+ * order and then hands them all back at once.
+ *
+ */
+public class RingInputQueue implements InputQueue {
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final WaitStrategy DEFAULT_WAIT_STRATEGY = WaitStrategy.BLOCKING;
+	
+	private static final int SPIN_TRIES = 100;
+	private static final long PRODUCER_PARK_NANOS = 50000;
+	
+	private final int mask;
+	private final ClickerInput[] slots;
+	private final AtomicLongArray published; // sequence number last published in each slot
+	private final AtomicLong claimed = new AtomicLong(0); // next sequence number for a producer
+	private volatile long consumed = 0; // next sequence number for the input thread, earlier slots are free
+	private final AtomicLong stalls = new AtomicLong(0);
+	
+	private final WaitStrategy waitStrategy;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private volatile boolean consumerWaiting = false;
+	
+	// capacity is rounded up to a power of two
+	public RingInputQueue(int capacity, WaitStrategy waitStrategy) {
+		int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = size - 1;
+		this.slots = new ClickerInput[size];
+		this.published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new ClickerInput(null);
+			published.set(i, -1);
+		}
+		this.waitStrategy = waitStrategy;
+	}
+	
+	@Override
+	public void add(String message, ClickerClient client) {
+		long sequence = claimed.getAndIncrement();
+		if (sequence - slots.length >= consumed) {
+			stalls.incrementAndGet();
+			int tries = 0;
+			while (sequence - slots.length >= consumed) {
+				waitForSpace(tries++);
+			}
+		}
+		
+		int index = (int) sequence & mask;
+		ClickerInput slot = slots[index];
+		slot.message = message;
+		slot.client = client;
+		published.set(index, sequence);
+		
+		// the volatile write above and this read pair with the ones in awaitPublished so a wakeup is never missed
+		if (consumerWaiting) {
+			lock.lock();
+			try {
+				notEmpty.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	private void waitForSpace(int tries) {
+		switch (waitStrategy) {
+		case BLOCKING:
+			LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+			break;
+		case YIELDING:
+			if (tries > SPIN_TRIES) {
+				Thread.yield();
+			}
+			break;
+		case BUSY_SPIN:
+			break;
+		}
+	}
+	
+	@Override
+	public int drainTo(InputBatch batch, long timeout, TimeUnit unit) throws InterruptedException {
+		long next = consumed;
+		if (!isPublished(next) && !awaitPublished(next, timeout, unit)) {
+			return 0;
+		}
+		
+		int count = 0;
+		while (isPublished(next)) {
+			ClickerInput slot = slots[(int) next & mask];
+			batch.add(slot.message, slot.client);
+			slot.message = null;
+			slot.client = null;
+			next++;
+			count++;
+		}
+		consumed = next;
+		return count;
+	}
+	
+	private boolean isPublished(long sequence) {
+		return published.get((int) sequence & mask) == sequence;
+	}
+	
+	// waits for the slot with the given sequence number to be published, false on timeout
+	private boolean awaitPublished(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = timeout < 0 ? 0 : System.nanoTime() + unit.toNanos(timeout);
+		
+		if (waitStrategy == WaitStrategy.BLOCKING) {
+			lock.lockInterruptibly();
+			try {
+				consumerWaiting = true;
+				while (!isPublished(sequence)) {
+					if (timeout < 0) {
+						notEmpty.await();
+					} else {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							return false;
+						}
+						notEmpty.awaitNanos(remaining);
+					}
+				}
+				return true;
+			} finally {
+				consumerWaiting = false;
+				lock.unlock();
+			}
+		}
+		
+		int tries = 0;
+		while (!isPublished(sequence)) {
+			if (timeout >= 0 && System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (waitStrategy == WaitStrategy.YIELDING && ++tries > SPIN_TRIES) {
+				Thread.yield();
+			}
+		}
+		return true;
+	}
+	
+	// includes producers that have claimed a slot but not published it yet, or are waiting for space
+	@Override
+	public int size() {
+		return (int) Math.max(0, claimed.get() - consumed);
+	}
+	
+	@Override
+	public long getStalls() {
+		return stalls.get();
+	}
+	
+	public int getCapacity() {
+		return slots.length;
+	}
+	
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+}
@@ -0,0 +1,68 @@
+package ca.ubc.clicker.server;
+
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Typed access to the optional settings in config.properties. Missing or
+ * malformed values fall back to the supplied default.
+ *
+ */
+public class ServerConfig {
+	private static Logger log = LogManager.getLogger();
+
+	private final Properties properties;
+
+	public ServerConfig() {
+		this(new Properties());
+	}
+
+	public ServerConfig(Properties properties) {
+		this.properties = properties;
+	}
+
+	public String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		value = value.trim();
+		return value.isEmpty() ? defaultValue : value;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			log.warn("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			log.warn("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+}
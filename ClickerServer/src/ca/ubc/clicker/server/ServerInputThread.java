@@ -1,35 +1,79 @@
 package ca.ubc.clicker.server;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+import ca.ubc.clicker.server.util.LatencyHistogram;
 
 /**
- * Blocks on the input queue and runs the commands that are added
+ * Blocks on a session's input queue and runs the commands that are added.
+ * Everything waiting in the queue is taken at once so that consecutive choose
+ * commands can be broadcast as a single batch of choices.
  * @author pbeshai
  *
  */
-public class ServerInputThread extends Thread {
-	private ClickerServer server;
+public class ServerInputThread implements Runnable {
+	private static Logger log = LogManager.getLogger();
+	private static final Counter inputs = Metrics.counter("input.count");
+	private static final LatencyHistogram batchSize = Metrics.histogram("input.batchSize"); // inputs, not microseconds
+	private static final LatencyHistogram runTime = Metrics.histogram("input.runTime"); // running a whole batch
 	
-	private final BlockingQueue<ClickerInput> queue;
+	private ClickerSession session;
 	
-	public ServerInputThread(ClickerServer server, BlockingQueue<ClickerInput> queue) {
-		super("ServerInputListenerThread");
-		
-		this.server = server;
+	private final InputQueue queue;
+	private final long maxBatchDelay;
+	
+	public ServerInputThread(ClickerSession session, InputQueue queue) {
+		this(session, queue, 0);
+	}
+	
+	// maxBatchDelay: ms to wait for more input after the first one arrives, 0 to run what is there right away
+	public ServerInputThread(ClickerSession session, InputQueue queue, long maxBatchDelay) {
+		this.session = session;
 		this.queue = queue;
+		this.maxBatchDelay = maxBatchDelay;
 		
-		start();
+		ServerThreads.start(this, "ServerInputListenerThread-" + session.getName());
 	}
 	
 	@Override
 	public void run() {
+		InputBatch batch = new InputBatch();
 		try {
 			while (true) {
-				ClickerInput input = queue.take();
-				server.runInput(input);
+				queue.drainTo(batch, -1, TimeUnit.NANOSECONDS);
+				
+				if (maxBatchDelay > 0) {
+					collectUntil(batch, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelay));
+				}
+				
+				long start = System.nanoTime();
+				try {
+					session.runInputs(batch);
+				} catch (RuntimeException e) { // the rest of the batch is lost, but not the session
+					log.error("Error running input in " + session, e);
+				}
+				runTime.record((System.nanoTime() - start) / 1000);
+				inputs.add(batch.size());
+				batchSize.record(batch.size());
+				batch.clear();
 			}
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	// keeps adding input to the batch until the deadline
+	private void collectUntil(InputBatch batch, long deadline) throws InterruptedException {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (queue.drainTo(batch, remaining, TimeUnit.NANOSECONDS) == 0) {
+				return;
+			}
+		}
+	}
 }
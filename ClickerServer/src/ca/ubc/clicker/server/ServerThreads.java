@@ -0,0 +1,83 @@
+package ca.ubc.clicker.server;
+
+import java.lang.reflect.Method;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Starts the server's long running tasks (client input/output, server input,
+ * stdin and base station polling). Set via the threads property:
+ *
+ *   threads=platform   regular threads (default), optionally with threadStackSize bytes of stack
+ *   threads=virtual    virtual threads, if the JVM running the server supports them (Java 21+)
+ *
+ * The server is compiled for older JVMs, so virtual threads are created
+ * reflectively and the platform mode is used if they are not available.
+ *
+ */
+public class ServerThreads {
+	private static Logger log = LogManager.getLogger();
+
+	public static final String MODE_PLATFORM = "platform";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	private static volatile boolean virtual = false;
+	private static volatile long stackSize = 0; // 0 lets the JVM decide
+
+	private static Method ofVirtual;
+	private static Method builderName;
+	private static Method builderStart;
+
+	public static void configure(ServerConfig config) {
+		stackSize = Math.max(0, config.getLong("threadStackSize", 0));
+
+		String mode = config.getString("threads", MODE_PLATFORM);
+		if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+			virtual = loadVirtualThreadBuilder();
+			if (!virtual) {
+				log.warn("Virtual threads are not supported by this JVM (" + System.getProperty("java.version") + "), using platform threads");
+			}
+		} else {
+			if (!MODE_PLATFORM.equalsIgnoreCase(mode)) {
+				log.warn("Unknown threads setting " + mode + ", using " + MODE_PLATFORM);
+			}
+			virtual = false;
+		}
+		log.info("Thread mode: " + getMode());
+	}
+
+	public static String getMode() {
+		return virtual ? MODE_VIRTUAL : MODE_PLATFORM;
+	}
+
+	private static synchronized boolean loadVirtualThreadBuilder() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builderClass.getMethod("name", String.class);
+			builderStart = builderClass.getMethod("start", Runnable.class);
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	// starts task on a new thread of the configured kind and returns it
+	public static Thread start(Runnable task, String name) {
+		if (virtual) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread) builderStart.invoke(builder, task);
+			} catch (Exception e) {
+				log.error("Could not start virtual thread " + name + ": " + e.getMessage());
+			}
+		}
+
+		Thread thread = new Thread(null, task, name, stackSize);
+		thread.start();
+		return thread;
+	}
+}
@@ -12,17 +12,16 @@ import ca.ubc.clicker.server.messages.CommandMessage;
 
 import com.google.gson.Gson;
 
-public class SystemInputThread extends Thread {
+public class SystemInputThread implements Runnable {
 	private IOServer server;
 	private BufferedReader in;
 
 	private static final String VOTE_COMMAND = "choose";
 
 	public SystemInputThread(IOServer server) {
-		super("SystemInputThread");
 		this.server = server;
 		in = new BufferedReader(new InputStreamReader(System.in));
-		start();
+		ServerThreads.start(this, "SystemInputThread");
 	}
 
 	private void voteCommand(String inputLine, CommandMessage message) {
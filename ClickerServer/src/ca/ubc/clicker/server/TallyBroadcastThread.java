@@ -0,0 +1,44 @@
+package ca.ubc.clicker.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Broadcasts a session's tally every tallyInterval ms, if it changed since the last one
+ *
+ */
+public class TallyBroadcastThread implements Runnable {
+	private static Logger log = LogManager.getLogger();
+	
+	private final ClickerServer server;
+	private final ClickerSession session;
+	private final TallyEngine tally;
+	private final long interval;
+	
+	public TallyBroadcastThread(ClickerServer server, ClickerSession session, long interval) {
+		this.server = server;
+		this.session = session;
+		this.tally = session.getTally();
+		this.interval = interval;
+		
+		ServerThreads.start(this, "TallyBroadcastThread-" + session.getName());
+	}
+	
+	@Override
+	public void run() {
+		long lastVersion = tally.getVersion();
+		try {
+			while (true) {
+				Thread.sleep(interval);
+				
+				long version = tally.getVersion();
+				if (version != lastVersion) {
+					lastVersion = version;
+					server.outputTally(session);
+				}
+			}
+		} catch (InterruptedException e) {
+			log.error("Interrupted: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package ca.ubc.clicker.server;
+
+import java.util.LinkedHashMap;
+
+import ca.ubc.clicker.enums.ButtonEnum;
+import ca.ubc.clicker.server.messages.TallyMessage;
+import ca.ubc.clicker.server.util.ClickerIdMap;
+
+/**
+ * Keeps the current choice of every clicker and the number of clickers on each
+ * button, updated as votes come in so clients can ask for the totals instead
+ * of counting the whole stream of choices themselves.
+ *
+ */
+public class TallyEngine {
+	private static final ButtonEnum[] BUTTONS = ButtonEnum.values();
+	
+	private final ClickerIdMap latest;
+	private final int[] counts;
+	private long version = 0; // changes whenever the counts do
+	
+	public TallyEngine() {
+		this.latest = new ClickerIdMap();
+		this.counts = new int[BUTTONS.length];
+	}
+	
+	public synchronized void record(String id, ButtonEnum button, long time) {
+		int choice = button.ordinal();
+		int previous = latest.put(id, choice, time);
+		if (previous == choice) {
+			return;
+		}
+		
+		if (previous != ClickerIdMap.NONE) {
+			counts[previous]--;
+		}
+		counts[choice]++;
+		version++;
+	}
+	
+	// start over, e.g. for a new question
+	public synchronized void reset() {
+		latest.clear();
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		version++;
+	}
+	
+	public synchronized long getVersion() {
+		return version;
+	}
+	
+	public synchronized TallyMessage toMessage() {
+		TallyMessage message = new TallyMessage();
+		message.counts = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < counts.length; i++) {
+			message.counts.put(BUTTONS[i].name(), counts[i]);
+		}
+		message.total = latest.size();
+		message.time = System.currentTimeMillis();
+		return message;
+	}
+}
@@ -0,0 +1,17 @@
+package ca.ubc.clicker.server;
+
+/**
+ * How the RingInputQueue waits, both the input thread for input to arrive
+ * and producers for space when the ring is full.
+ *
+ */
+public enum WaitStrategy {
+	BLOCKING,  // sleep until signalled, lowest cpu use
+	YIELDING,  // spin briefly then yield the cpu, lower latency
+	BUSY_SPIN; // never give up the cpu, lowest latency but keeps a core busy
+
+	// parses the config form, e.g. busy-spin
+	public static WaitStrategy fromString(String value) {
+		return valueOf(value.trim().toUpperCase().replace('-', '_'));
+	}
+}
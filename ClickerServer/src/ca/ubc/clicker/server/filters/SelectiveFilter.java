@@ -0,0 +1,18 @@
+package ca.ubc.clicker.server.filters;
+
+import java.util.Set;
+
+/**
+ * Implemented by a Filter or StructuredFilter that only handles some
+ * messages, so that everything else skips it, e.g. a filter that rewrites
+ * status responses never sees the choices broadcasts. Filters that don't
+ * implement it see every message.
+ *
+ */
+public interface SelectiveFilter {
+	// names of the commands input() should see, e.g. "enable choices". null for all input, empty for none.
+	public Set<String> getInputCommands();
+	
+	// types of the output output() should see, e.g. "command" or "choices". null for all output, empty for none.
+	public Set<String> getOutputTypes();
+}
@@ -0,0 +1,28 @@
+package ca.ubc.clicker.server.filters;
+
+import ca.ubc.clicker.server.ClickerServer;
+import ca.ubc.clicker.server.ParsedCommand;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+/**
+ * Like Filter, but works on messages that have already been parsed so that a
+ * chain of them parses input and serializes output only once. Loaded with
+ * ServiceLoader from META-INF/services/ca.ubc.clicker.server.filters.StructuredFilter.
+ *
+ * Structured filters sit between the string filters and the server: input
+ * goes through the string filters first, output through the structured ones
+ * first. Input that isn't a command and output that isn't a JSON object with
+ * a type skip the structured filters.
+ *
+ */
+public interface StructuredFilter {
+	public boolean initialize(ClickerServer server);
+	
+	// returns the command to pass on (this one, a changed one or one from ParsedCommand.create), or null to drop it.
+	// use setArguments after changing the arguments.
+	public ParsedCommand input(ParsedCommand command);
+	
+	// returns the message to send, which can be changed in place, or null to drop it. its data is what the
+	// server put there, or maps and lists if the message was output as a string.
+	public ResponseMessage output(ResponseMessage message);
+}
@@ -0,0 +1,47 @@
+package ca.ubc.clicker.server.gson;
+
+import java.io.IOException;
+
+import ca.ubc.clicker.server.messages.ChoiceMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+class ChoiceMessageAdapter extends MessageAdapter<ChoiceMessage> {
+	
+	ChoiceMessageAdapter(Gson gson) {
+		super(gson);
+	}
+	
+	@Override
+	ChoiceMessage create() {
+		return new ChoiceMessage();
+	}
+	
+	@Override
+	void writeFields(JsonWriter out, ChoiceMessage value) throws IOException {
+		out.name("id").value(value.id);
+		out.name("choice").value(value.choice);
+		if (value.instructor != null) {
+			out.name("instructor").value(value.instructor.booleanValue());
+		}
+		out.name("time").value(value.time);
+	}
+	
+	@Override
+	boolean readField(JsonReader in, String field, ChoiceMessage value) throws IOException {
+		if ("id".equals(field)) {
+			value.id = readString(in);
+		} else if ("choice".equals(field)) {
+			value.choice = readString(in);
+		} else if ("instructor".equals(field)) {
+			value.instructor = readBoolean(in);
+		} else if ("time".equals(field)) {
+			value.time = readLong(in);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,43 @@
+package ca.ubc.clicker.server.gson;
+
+import java.io.IOException;
+
+import ca.ubc.clicker.server.messages.CommandMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+class CommandMessageAdapter extends MessageAdapter<CommandMessage> {
+	
+	CommandMessageAdapter(Gson gson) {
+		super(gson);
+	}
+	
+	@Override
+	CommandMessage create() {
+		return new CommandMessage();
+	}
+	
+	@Override
+	void writeFields(JsonWriter out, CommandMessage value) throws IOException {
+		out.name("command").value(value.command);
+		out.name("id").value(value.id);
+		out.name("arguments");
+		writeObject(out, value.arguments);
+	}
+	
+	@Override
+	boolean readField(JsonReader in, String field, CommandMessage value) throws IOException {
+		if ("command".equals(field)) {
+			value.command = readString(in);
+		} else if ("id".equals(field)) {
+			value.id = readString(in);
+		} else if ("arguments".equals(field)) {
+			value.arguments = readObject(in);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,46 @@
+package ca.ubc.clicker.server.gson;
+
+import java.io.IOException;
+
+import ca.ubc.clicker.server.messages.CommandResponseMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+class CommandResponseMessageAdapter extends MessageAdapter<CommandResponseMessage> {
+	
+	CommandResponseMessageAdapter(Gson gson) {
+		super(gson);
+	}
+	
+	@Override
+	CommandResponseMessage create() {
+		return new CommandResponseMessage();
+	}
+	
+	@Override
+	void writeFields(JsonWriter out, CommandResponseMessage value) throws IOException {
+		out.name("type").value(value.type);
+		out.name("command").value(value.command);
+		out.name("id").value(value.id);
+		out.name("data");
+		writeObject(out, value.data);
+	}
+	
+	@Override
+	boolean readField(JsonReader in, String field, CommandResponseMessage value) throws IOException {
+		if ("type".equals(field)) {
+			value.type = readString(in);
+		} else if ("command".equals(field)) {
+			value.command = readString(in);
+		} else if ("id".equals(field)) {
+			value.id = readString(in);
+		} else if ("data".equals(field)) {
+			value.data = readObject(in);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,45 @@
+package ca.ubc.clicker.server.gson;
+
+import java.io.IOException;
+
+import ca.ubc.clicker.server.messages.ErrorMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+class ErrorMessageAdapter extends MessageAdapter<ErrorMessage> {
+	
+	ErrorMessageAdapter(Gson gson) {
+		super(gson);
+	}
+	
+	@Override
+	ErrorMessage create() {
+		return new ErrorMessage();
+	}
+	
+	@Override
+	void writeFields(JsonWriter out, ErrorMessage value) throws IOException {
+		out.name("type").value(value.type);
+		out.name("error").value(value.error);
+		out.name("command").value(value.command);
+		out.name("id").value(value.id);
+	}
+	
+	@Override
+	boolean readField(JsonReader in, String field, ErrorMessage value) throws IOException {
+		if ("type".equals(field)) {
+			value.type = readString(in);
+		} else if ("error".equals(field)) {
+			value.error = readString(in);
+		} else if ("command".equals(field)) {
+			value.command = readString(in);
+		} else if ("id".equals(field)) {
+			value.id = readString(in);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
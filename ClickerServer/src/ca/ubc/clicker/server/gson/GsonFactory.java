@@ -4,14 +4,18 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 /**
- * shared Gson configuration here 
+ * shared Gson configuration here. Gson is thread safe, so a single instance
+ * is shared by everyone; it caches its adapters, so creating one per message
+ * would throw that work away every time.
  * @author pbeshai
  *
  */
 public class GsonFactory {
-	private static GsonBuilder builder = new GsonBuilder();
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapterFactory(new MessageTypeAdapterFactory())
+			.create();
 	
 	public static Gson gson() {
-		return builder.create();
+		return gson;
 	}
 }
@@ -0,0 +1,115 @@
+package ca.ubc.clicker.server.gson;
+
+import java.io.IOException;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Base for the hand-written message adapters. Reads are as forgiving as
+ * Gson's reflective adapters (nulls, numbers as strings, unknown fields) and
+ * null fields are left out when writing, as Gson does by default.
+ *
+ */
+abstract class MessageAdapter<T> extends TypeAdapter<T> {
+	private final Gson gson;
+	
+	MessageAdapter(Gson gson) {
+		this.gson = gson;
+	}
+	
+	static String readString(JsonReader in) throws IOException {
+		JsonToken token = in.peek();
+		if (token == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		if (token == JsonToken.BOOLEAN) {
+			return Boolean.toString(in.nextBoolean());
+		}
+		return in.nextString();
+	}
+	
+	static Long readLong(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return in.nextLong();
+	}
+	
+	static Integer readInteger(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return in.nextInt();
+	}
+	
+	static Boolean readBoolean(JsonReader in) throws IOException {
+		JsonToken token = in.peek();
+		if (token == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		if (token == JsonToken.STRING) {
+			return Boolean.parseBoolean(in.nextString());
+		}
+		return in.nextBoolean();
+	}
+	
+	// reads a value of unknown type into maps, lists and primitives
+	Object readObject(JsonReader in) throws IOException {
+		return gson.getAdapter(Object.class).read(in);
+	}
+	
+	// writes a value of any type using its runtime type
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void writeObject(JsonWriter out, Object value) throws IOException {
+		if (value == null) {
+			out.nullValue();
+			return;
+		}
+		TypeAdapter adapter = gson.getAdapter(value.getClass());
+		adapter.write(out, value);
+	}
+	
+	// null messages are written as null like Gson does, otherwise as an object
+	@Override
+	public final void write(JsonWriter out, T value) throws IOException {
+		if (value == null) {
+			out.nullValue();
+			return;
+		}
+		out.beginObject();
+		writeFields(out, value);
+		out.endObject();
+	}
+	
+	@Override
+	public final T read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		T value = create();
+		in.beginObject();
+		while (in.hasNext()) {
+			if (!readField(in, in.nextName(), value)) {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return value;
+	}
+	
+	abstract T create();
+	
+	abstract void writeFields(JsonWriter out, T value) throws IOException;
+	
+	// reads the value of field into value. returns false if the field is unknown.
+	abstract boolean readField(JsonReader in, String field, T value) throws IOException;
+}
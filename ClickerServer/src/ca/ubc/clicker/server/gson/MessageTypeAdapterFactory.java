@@ -0,0 +1,46 @@
+package ca.ubc.clicker.server.gson;
+
+import ca.ubc.clicker.server.messages.ChoiceMessage;
+import ca.ubc.clicker.server.messages.CommandMessage;
+import ca.ubc.clicker.server.messages.CommandResponseMessage;
+import ca.ubc.clicker.server.messages.ErrorMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+import ca.ubc.clicker.server.messages.StatusMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Supplies the hand-written adapters for the message classes so they are
+ * serialized without reflection. Other types use Gson's default adapters.
+ *
+ */
+public class MessageTypeAdapterFactory implements TypeAdapterFactory {
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+		Class<? super T> raw = type.getRawType();
+		if (raw == ChoiceMessage.class) {
+			return (TypeAdapter<T>) new ChoiceMessageAdapter(gson);
+		}
+		if (raw == ResponseMessage.class) {
+			return (TypeAdapter<T>) new ResponseMessageAdapter(gson);
+		}
+		if (raw == StatusMessage.class) {
+			return (TypeAdapter<T>) new StatusMessageAdapter(gson);
+		}
+		if (raw == CommandMessage.class) {
+			return (TypeAdapter<T>) new CommandMessageAdapter(gson);
+		}
+		if (raw == CommandResponseMessage.class) {
+			return (TypeAdapter<T>) new CommandResponseMessageAdapter(gson);
+		}
+		if (raw == ErrorMessage.class) {
+			return (TypeAdapter<T>) new ErrorMessageAdapter(gson);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,40 @@
+package ca.ubc.clicker.server.gson;
+
+import java.io.IOException;
+
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+class ResponseMessageAdapter extends MessageAdapter<ResponseMessage> {
+	
+	ResponseMessageAdapter(Gson gson) {
+		super(gson);
+	}
+	
+	@Override
+	ResponseMessage create() {
+		return new ResponseMessage();
+	}
+	
+	@Override
+	void writeFields(JsonWriter out, ResponseMessage value) throws IOException {
+		out.name("type").value(value.type);
+		out.name("data");
+		writeObject(out, value.data);
+	}
+	
+	@Override
+	boolean readField(JsonReader in, String field, ResponseMessage value) throws IOException {
+		if ("type".equals(field)) {
+			value.type = readString(in);
+		} else if ("data".equals(field)) {
+			value.data = readObject(in);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,65 @@
+package ca.ubc.clicker.server.gson;
+
+import java.io.IOException;
+
+import ca.ubc.clicker.server.messages.StatusMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+class StatusMessageAdapter extends MessageAdapter<StatusMessage> {
+	
+	StatusMessageAdapter(Gson gson) {
+		super(gson);
+	}
+	
+	@Override
+	StatusMessage create() {
+		return new StatusMessage();
+	}
+	
+	@Override
+	void writeFields(JsonWriter out, StatusMessage value) throws IOException {
+		out.name("time").value(value.time);
+		out.name("session").value(value.session);
+		out.name("instructorId").value(value.instructorId);
+		if (value.acceptingChoices != null) {
+			out.name("acceptingChoices").value(value.acceptingChoices.booleanValue());
+		}
+		out.name("numClients").value(value.numClients);
+		out.name("pollInterval").value(value.pollInterval);
+		out.name("pollLatency").value(value.pollLatency);
+		out.name("pollLatencyMax").value(value.pollLatencyMax);
+		out.name("inputQueueDepth").value(value.inputQueueDepth);
+		out.name("inputQueueStalls").value(value.inputQueueStalls);
+	}
+	
+	@Override
+	boolean readField(JsonReader in, String field, StatusMessage value) throws IOException {
+		if ("time".equals(field)) {
+			value.time = readLong(in);
+		} else if ("session".equals(field)) {
+			value.session = readString(in);
+		} else if ("instructorId".equals(field)) {
+			value.instructorId = readString(in);
+		} else if ("acceptingChoices".equals(field)) {
+			value.acceptingChoices = readBoolean(in);
+		} else if ("numClients".equals(field)) {
+			value.numClients = readInteger(in);
+		} else if ("pollInterval".equals(field)) {
+			value.pollInterval = readLong(in);
+		} else if ("pollLatency".equals(field)) {
+			value.pollLatency = readLong(in);
+		} else if ("pollLatencyMax".equals(field)) {
+			value.pollLatencyMax = readLong(in);
+		} else if ("inputQueueDepth".equals(field)) {
+			value.inputQueueDepth = readInteger(in);
+		} else if ("inputQueueStalls".equals(field)) {
+			value.inputQueueStalls = readLong(in);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
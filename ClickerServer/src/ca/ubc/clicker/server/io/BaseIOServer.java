@@ -1,30 +1,50 @@
 package ca.ubc.clicker.server.io;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.ServiceLoader;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
 import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.server.ParsedCommand;
 import ca.ubc.clicker.server.filters.Filter;
+import ca.ubc.clicker.server.filters.StructuredFilter;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.CommandResponseMessage;
+import ca.ubc.clicker.server.messages.ErrorMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+import ca.ubc.clicker.server.util.LatencyHistogram;
 
 public class BaseIOServer implements IOServer {
 	private static Logger log = LogManager.getLogger();
+	private static final Counter broadcasts = Metrics.counter("output.broadcasts");
+	private static final Counter unicasts = Metrics.counter("output.unicasts");
+	private static final Counter filtered = Metrics.counter("output.filtered"); // dropped by a filter
+	private static final Counter queuedBytes = Metrics.counter("output.bytes"); // summed over the clients
+	private static final LatencyHistogram fanOutTime = Metrics.histogram("output.fanOutTime"); // filtering, encoding and queueing for every client
 	
 	private int serverPort;
-	private List<ClickerClient> clients;
+	private ClientRegistry clients;
 	private IOServer composedServer = null; // workaround since we can't do mixins :(
-	private List<Filter> filters;
+	private FilterChains filters;
 	
 	public BaseIOServer(int serverPort) {
 		this.serverPort = serverPort;
-		this.clients = new LinkedList<ClickerClient>();
-		this.filters = new LinkedList<Filter>();
+		this.clients = new ClientRegistry();
+		this.filters = new FilterChains();
 	}
 	
 	public BaseIOServer(int serverPort, IOServer composedServer) {
@@ -40,30 +60,10 @@ public class BaseIOServer implements IOServer {
 	public void run() throws IOException, InterruptedException {
 		init();
 
-		ServerSocket serverSocket = null;
-		Socket clientSocket = null;
-
 		// bind the server to the right port
 		if (serverPort >= 0) {
 			try {
-				serverSocket = new ServerSocket(serverPort);
-				log.info("Successfully listening on port " + serverPort);
-
-				// accept client connections
-				try {
-					while (true) {
-						clientSocket = serverSocket.accept();
-						// composed server will receive the 'input' calls from ClickerClient.
-						ClickerClient client = new ClickerClient(clientSocket, this);
-						clients.add(client);
-					}
-				} catch (IOException e) {
-					log.warn("Server socket accept failed on port: " + serverPort);
-					System.exit(-1);
-				}
-
-				serverSocket.close();
-
+				listen();
 			} catch (IOException e) {
 				log.warn("Could not listen on port: " + serverPort);
 			}
@@ -75,6 +75,36 @@ public class BaseIOServer implements IOServer {
 			Thread.sleep(300);
 		}
 	}
+	
+	// binds to the server port and accepts client connections. can be overridden to change the transport
+	protected void listen() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(serverPort);
+		Socket clientSocket = null;
+		log.info("Successfully listening on port " + serverPort);
+
+		// accept client connections
+		try {
+			while (true) {
+				clientSocket = serverSocket.accept();
+				// composed server will receive the 'input' calls from ClickerClient.
+				ClickerClient client = new ClickerClient(clientSocket, this);
+				addClient(client);
+			}
+		} catch (IOException e) {
+			log.warn("Server socket accept failed on port: " + serverPort);
+			System.exit(-1);
+		}
+
+		serverSocket.close();
+	}
+	
+	protected void addClient(ClickerClient client) {
+		clients.add(client);
+	}
+	
+	protected int getServerPort() {
+		return serverPort;
+	}
 
 	public void input(String message) {
 		if (composedServer != null) {
@@ -92,7 +122,7 @@ public class BaseIOServer implements IOServer {
 
 	// should be overridden if not composed
 	public void input(String message, ClickerClient client) {
-		message = filterInput(message);
+		message = filterInput(message, client);
 		
 		if (message == null) { // abort if message is empty
 			return; 
@@ -105,53 +135,117 @@ public class BaseIOServer implements IOServer {
 		}
 	}
 	
-	// removes dead clients
-	private void pruneClients() {
-		for (int i = 0; i < clients.size(); i++) {
-			ClickerClient currClient = clients.get(i);
-			// prune dead clients
-			if(!currClient.isAlive()) {
-				clients.remove(currClient);
-				i--;
-				continue;
-			} 
-		}
-	}
-	
 	// sends output to all the clients
 	@Override
 	public void output(String message) {
 		output(message, null);
 	}
 	
-	// can be overridden by subclasses
+	// can be overridden by subclasses. output encoded without the filters (see isOutputFiltered) doesn't go through it.
 	protected String processOutput(String message) {
 		return message;
 	}
 	
 	// sends output to all the clients if client == null, otherwise just to client
 	public void output(String message, ClickerClient client) {
-		pruneClients();
-		
+		long start = System.nanoTime();
 		message = processOutput(message);
+		if (message == null) {
+			filtered.increment();
+			return;
+		}
 		
+		FilterChains.Chain chain = filters.output(filters.isOutputSelective() ? outputType(message) : null);
+		
+		// the structured filters need it parsed, once for all of them
+		if (chain.structuredFilters.length > 0) {
+			ResponseMessage parsed = parseOutput(message);
+			if (parsed != null) {
+				parsed = filterOutput(parsed, chain);
+				message = parsed == null ? null : GsonFactory.gson().toJson(parsed);
+			}
+		}
+		
+		send(message, chain, client, clients, start);
+	}
+	
+	// runs the structured filters, then serializes the message once for the string filters and the clients
+	@Override
+	public void output(ResponseMessage message, ClickerClient client) {
+		output(message, client, clients);
+	}
+	
+	@Override
+	public void output(ResponseMessage message, Iterable<ClickerClient> recipients) {
+		output(message, null, recipients, null);
+	}
+	
+	@Override
+	public void outputLogged(ResponseMessage message, ClickerClient client, Iterable<ClickerClient> recipients, String label) {
+		output(message, client, recipients == null ? clients : recipients, label);
+	}
+	
+	private void output(ResponseMessage message, ClickerClient client, Iterable<ClickerClient> recipients) {
+		output(message, client, recipients, null);
+	}
+	
+	// label is what to log the serialized message under, null to not log it
+	private void output(ResponseMessage message, ClickerClient client, Iterable<ClickerClient> recipients, String label) {
+		long start = System.nanoTime();
+		FilterChains.Chain chain = filters.output(message.type);
+		message = filterOutput(message, chain);
+		String json = message == null ? null : GsonFactory.gson().toJson(message);
+		if (label != null && json != null) {
+			log.info("[{}] {}", label, json);
+		}
+		send(json == null ? null : processOutput(json), chain, client, recipients, start);
+	}
+	
+	@Override
+	public boolean isOutputFiltered(String type) {
+		FilterChains.Chain chain = filters.output(type);
+		return chain.filters.length > 0 || chain.structuredFilters.length > 0;
+	}
+	
+	@Override
+	public void output(EncodedMessage message, Iterable<ClickerClient> recipients) {
+		queue(message, null, recipients == null ? clients : recipients, System.nanoTime());
+	}
+	
+	// runs the string filters and queues the message for the client, or for the recipients if client is null
+	private void send(String message, FilterChains.Chain chain, ClickerClient client, Iterable<ClickerClient> recipients, long start) {
 		// filter output
-		message = filterOutput(message);
+		if (message != null) {
+			message = filterOutput(message, chain);
+		}
 		
 		if (message == null) { // abort if the message is empty
+			filtered.increment();
 			return;
 		}
 		
+		// encode once, every client writes the same bytes
+		queue(EncodedMessage.encode(message), client, recipients, start);
+	}
+	
+	private void queue(EncodedMessage encoded, ClickerClient client, Iterable<ClickerClient> recipients, long start) {
 		if (client == null) { // broadcast
-			// send to all the clients
-			for (int i = 0; i < clients.size(); i++) {
+			// send to all the recipients; disconnected clients have already removed themselves
+			int sent = 0;
+			for (ClickerClient currClient : recipients) {
 				// broadcast message to each client
-				clients.get(i).output(message);
+				currClient.output(encoded);
+				sent++;
 			}
+			broadcasts.increment();
+			queuedBytes.add((long) encoded.length() * sent);
+			fanOutTime.record((System.nanoTime() - start) / 1000);
 		// don't broadcast
 		} else if(client.isAlive()) {
 			// send message to individual client
-			client.output(message);
+			client.output(encoded);
+			unicasts.increment();
+			queuedBytes.add(encoded.length());
 		}
 	}
 	
@@ -160,22 +254,139 @@ public class BaseIOServer implements IOServer {
 		return clients.size();
 	}
 	
+	@Override
+	public Iterable<ClickerClient> getClients() {
+		return clients;
+	}
+	
 	protected String filterOutput(String message) {
-		for (Filter filter : filters) {
-			message = filter.output(message);
+		return filterOutput(message, filters.output(filters.isOutputSelective() ? outputType(message) : null));
+	}
+	
+	private static String filterOutput(String message, FilterChains.Chain chain) {
+		Filter[] chainFilters = chain.filters;
+		for (int i = 0; i < chainFilters.length; i++) {
+			long start = System.nanoTime();
+			message = chainFilters[i].output(message);
+			chain.filterStats[i].called(start);
 			if (message == null) return null;
 		}
 		return message;
 	}
 	
-	protected String filterInput(String message) {
-		for (Filter filter : filters) {
-			message = filter.input(message);
+	protected ResponseMessage filterOutput(ResponseMessage message) {
+		return filterOutput(message, filters.output(message.type));
+	}
+	
+	private static ResponseMessage filterOutput(ResponseMessage message, FilterChains.Chain chain) {
+		StructuredFilter[] chainFilters = chain.structuredFilters;
+		for (int i = 0; i < chainFilters.length; i++) {
+			long start = System.nanoTime();
+			message = chainFilters[i].output(message);
+			chain.structuredStats[i].called(start);
 			if (message == null) return null;
 		}
 		return message;
 	}
 	
+	protected String filterInput(String message) {
+		return filterInput(message, null);
+	}
+	
+	// string filters first, then the command is parsed once for the structured filters. only the filters for
+	// the command run; the command is found before any filter runs, so a filter can't send it down another chain.
+	protected String filterInput(String message, ClickerClient client) {
+		ParsedCommand command = null;
+		FilterChains.Chain chain;
+		if (filters.isInputSelective()) {
+			command = parseInput(message, client);
+			chain = filters.input(command == null ? null : command.getName());
+		} else {
+			chain = filters.input(null);
+		}
+		
+		String original = message;
+		Filter[] chainFilters = chain.filters;
+		for (int i = 0; i < chainFilters.length; i++) {
+			long start = System.nanoTime();
+			message = chainFilters[i].input(message);
+			chain.filterStats[i].called(start);
+			if (message == null) return null;
+		}
+		
+		StructuredFilter[] structured = chain.structuredFilters;
+		if (structured.length == 0) {
+			return message;
+		}
+		
+		if (command == null || message != original) {
+			command = parseInput(message, client);
+			if (command == null) {
+				return message; // not a command, the server reports it
+			}
+		}
+		for (int i = 0; i < structured.length; i++) {
+			long start = System.nanoTime();
+			command = structured[i].input(command);
+			chain.structuredStats[i].called(start);
+			if (command == null) return null;
+		}
+		return command.getMessage();
+	}
+	
+	// null if the input isn't a command
+	private static ParsedCommand parseInput(String message, ClickerClient client) {
+		try {
+			return ParsedCommand.parse(message, client);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	// reads just the type of a message, null if it doesn't have one
+	private static String outputType(String message) {
+		try {
+			JsonReader reader = new JsonReader(new StringReader(message));
+			reader.setLenient(true);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("type".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+					return reader.nextString();
+				}
+				reader.skipValue();
+			}
+		} catch (IOException e) {
+			// not a message
+		} catch (IllegalStateException e) {
+			// not a message
+		}
+		return null;
+	}
+	
+	// reads output as the ResponseMessage its type calls for, null if it isn't a message
+	private static ResponseMessage parseOutput(String message) {
+		try {
+			JsonElement json = new JsonParser().parse(message);
+			if (!json.isJsonObject()) {
+				return null;
+			}
+			JsonElement type = ((JsonObject) json).get("type");
+			if (type == null || !type.isJsonPrimitive()) {
+				return null;
+			}
+			
+			Class<? extends ResponseMessage> messageClass = ResponseMessage.class;
+			if ("command".equals(type.getAsString())) {
+				messageClass = CommandResponseMessage.class;
+			} else if ("error".equals(type.getAsString())) {
+				messageClass = ErrorMessage.class;
+			}
+			return GsonFactory.gson().fromJson(json, messageClass);
+		} catch (JsonParseException e) {
+			return null;
+		}
+	}
+	
 	public boolean initializeFilter(Filter filter) {
 		if (composedServer != null) {
 			return composedServer.initializeFilter(filter);
@@ -184,6 +395,23 @@ public class BaseIOServer implements IOServer {
 		return false;
 	}
 	
+	public boolean initializeFilter(StructuredFilter filter) {
+		if (composedServer != null) {
+			return composedServer.initializeFilter(filter);
+		}
+		
+		return false;
+	}
+	
+	// appends an already initialized filter to the chains it selects
+	protected void addFilter(Filter filter) {
+		filters.add(filter);
+	}
+	
+	protected void addFilter(StructuredFilter filter) {
+		filters.add(filter);
+	}
+	
 	protected void loadFilters() {
 		log.info("Loading filters...");
 		ServiceLoader<Filter> filterLoader = ServiceLoader.load(Filter.class);
@@ -192,10 +420,32 @@ public class BaseIOServer implements IOServer {
 			boolean enabled = initializeFilter(filter);
 			if (enabled) {
 				log.info("  OK " + filter.getClass().getSimpleName());
-				filters.add(filter);
+				addFilter(filter);
+			} else {
+				log.info("  X  " + filter.getClass().getSimpleName());
+			}
+		}
+		
+		ServiceLoader<StructuredFilter> structuredLoader = ServiceLoader.load(StructuredFilter.class);
+		for (StructuredFilter filter : structuredLoader) {
+			if (initializeFilter(filter)) {
+				log.info("  OK " + filter.getClass().getSimpleName());
+				addFilter(filter);
 			} else {
 				log.info("  X  " + filter.getClass().getSimpleName());
 			}
 		}
+		
+		for (String chain : filters.describe()) {
+			log.info("  " + chain);
+		}
+		filtersLoaded();
+	}
+	
+	@Override
+	public void filtersLoaded() {
+		if (composedServer != null) {
+			composedServer.filtersLoaded();
+		}
 	}
 }
@@ -0,0 +1,244 @@
+package ca.ubc.clicker.server.io;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The framing a client can switch its output to with
+ * {"command":"protocol","arguments":"binary"} (and back with "json"). Input
+ * stays JSON lines. Every message is sent as a frame:
+ *
+ *   int32   length of the rest of the frame
+ *   byte    frame type
+ *   ...     payload
+ *
+ * A choices broadcast is a CHOICES frame:
+ *
+ *   int64   base time, ms since the epoch
+ *   int16   number of choices (unsigned), then for each:
+ *     byte    flags, FLAG_INSTRUCTOR if it is the instructor's
+ *     int32   clicker id, the 8 hex digits as an int
+ *     byte    choice, e.g. 'A'
+ *     varint  time as ms after the base time (unsigned LEB128)
+ *
+ * Anything else is a JSON frame holding the UTF-8 text of the message, as
+ * are choices that don't fit the above (e.g. ids that aren't 8 upper case hex
+ * digits). Integers are big endian.
+ *
+ */
+public final class BinaryFrames {
+	public static final byte FRAME_JSON = 1;
+	public static final byte FRAME_CHOICES = 2;
+	public static final int FLAG_INSTRUCTOR = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_CHOICES = 0xffff;
+	private static final int CHOICE_SIZE = 1 + 4 + 1 + 5; // at most, with a 5 byte varint
+
+	private BinaryFrames() {
+	}
+
+	// a choice read from the JSON
+	private static class Choice {
+		int id;
+		byte choice;
+		boolean instructor;
+		long time;
+	}
+
+	// the frame for a message, as compact as its contents allow
+	public static byte[] encode(String message) {
+		List<Choice> choices = readChoices(message);
+		return choices == null ? jsonFrame(message) : choicesFrame(choices);
+	}
+
+	private static byte[] jsonFrame(String message) {
+		byte[] text = message.getBytes(UTF8);
+		ByteBuffer frame = ByteBuffer.allocate(4 + 1 + text.length);
+		frame.putInt(1 + text.length).put(FRAME_JSON).put(text);
+		return frame.array();
+	}
+
+	private static byte[] choicesFrame(List<Choice> choices) {
+		long base = Long.MAX_VALUE;
+		for (Choice choice : choices) {
+			base = Math.min(base, choice.time);
+		}
+
+		ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 8 + 2 + choices.size() * CHOICE_SIZE);
+		frame.putInt(0); // length, once it is known
+		frame.put(FRAME_CHOICES).putLong(base).putShort((short) choices.size());
+		for (Choice choice : choices) {
+			frame.put((byte) (choice.instructor ? FLAG_INSTRUCTOR : 0)).putInt(choice.id).put(choice.choice);
+			long delta = choice.time - base;
+			while ((delta & ~0x7fL) != 0) {
+				frame.put((byte) ((delta & 0x7f) | 0x80));
+				delta >>>= 7;
+			}
+			frame.put((byte) delta);
+		}
+
+		int length = frame.position();
+		frame.putInt(0, length - 4);
+		byte[] bytes = new byte[length];
+		System.arraycopy(frame.array(), 0, bytes, 0, length);
+		return bytes;
+	}
+
+	// the choices of a choices message, null if it isn't one or can't be sent as a CHOICES frame
+	private static List<Choice> readChoices(String message) {
+		if (!message.startsWith("{\"type\":\"choices\"")) {
+			return null;
+		}
+
+		try {
+			JsonReader reader = new JsonReader(new StringReader(message));
+			List<Choice> choices = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("type".equals(name)) {
+					reader.skipValue();
+				} else if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+					choices = new ArrayList<Choice>();
+					reader.beginArray();
+					while (reader.hasNext()) {
+						Choice choice = readChoice(reader);
+						if (choice == null || choices.size() == MAX_CHOICES) {
+							return null;
+						}
+						choices.add(choice);
+					}
+					reader.endArray();
+				} else {
+					return null;
+				}
+			}
+			return choices;
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalStateException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	// null unless it has exactly the fields the server writes, in a form that fits the frame
+	private static Choice readChoice(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			return null;
+		}
+		Choice choice = new Choice();
+		boolean hasId = false, hasChoice = false, hasTime = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			JsonToken token = reader.peek();
+			if ("id".equals(name) && token == JsonToken.STRING) {
+				String id = reader.nextString();
+				if (!isHexId(id)) {
+					return null;
+				}
+				choice.id = (int) Long.parseLong(id, 16);
+				hasId = true;
+			} else if ("choice".equals(name) && token == JsonToken.STRING) {
+				String value = reader.nextString();
+				char c = value.length() == 1 ? value.charAt(0) : 0;
+				if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') { // printable ascii that needs no escaping
+					return null;
+				}
+				choice.choice = (byte) value.charAt(0);
+				hasChoice = true;
+			} else if ("instructor".equals(name) && token == JsonToken.BOOLEAN) {
+				if (!reader.nextBoolean()) {
+					return null; // never written as false, so it wouldn't come back the same
+				}
+				choice.instructor = true;
+			} else if ("time".equals(name) && token == JsonToken.NUMBER) {
+				choice.time = reader.nextLong();
+				hasTime = choice.time >= 0;
+			} else {
+				return null;
+			}
+		}
+		reader.endObject();
+		return hasId && hasChoice && hasTime ? choice : null;
+	}
+
+	private static boolean isHexId(String id) {
+		if (id.length() != 8) {
+			return false;
+		}
+		for (int i = 0; i < 8; i++) {
+			char c = id.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// reads the next frame and returns the message it holds as JSON, null at the end of the stream
+	public static String read(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		return decode(frame, 0, length);
+	}
+
+	// the message in a frame (starting at its type byte) as JSON, the same text the JSON protocol sends
+	public static String decode(byte[] frame, int offset, int length) throws IOException {
+		byte type = frame[offset];
+		if (type == FRAME_JSON) {
+			return new String(frame, offset + 1, length - 1, UTF8);
+		}
+		if (type != FRAME_CHOICES) {
+			throw new IOException("Unknown frame type " + type);
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(frame, offset + 1, length - 1);
+		long base = in.getLong();
+		int count = in.getShort() & 0xffff;
+		StringBuilder json = new StringBuilder(32 + count * 48).append("{\"type\":\"choices\",\"data\":[");
+		for (int i = 0; i < count; i++) {
+			int flags = in.get();
+			String id = String.format("%08X", in.getInt());
+			char choice = (char) in.get();
+			long time = base + readVarint(in);
+
+			json.append(i == 0 ? "" : ",").append("{\"id\":\"").append(id).append("\",\"choice\":\"").append(choice).append('"');
+			if ((flags & FLAG_INSTRUCTOR) != 0) {
+				json.append(",\"instructor\":true");
+			}
+			json.append(",\"time\":").append(time).append('}');
+		}
+		return json.append("]}").toString();
+	}
+
+	public static long readVarint(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
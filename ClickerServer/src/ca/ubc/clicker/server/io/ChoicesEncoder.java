@@ -0,0 +1,145 @@
+package ca.ubc.clicker.server.io;
+
+import java.util.Arrays;
+
+/**
+ * Writes a choices broadcast straight from the votes into a buffer the thread
+ * reuses, byte for byte what Gson makes of the ChoiceMessages. The only thing
+ * allocated is the finished message, so polling the base station makes next
+ * to no garbage.
+ *
+ * Ids Gson would escape (anything but printable ascii, and " \ < > & = ')
+ * can't be written, check them with isPlain and serialize the batch with Gson
+ * if any of them isn't.
+ *
+ */
+public final class ChoicesEncoder {
+	private static final int INITIAL_SIZE = 4096;
+
+	private static final byte[] PREFIX = ascii(EncodedMessage.CHOICES_PREFIX);
+	private static final byte[] SUFFIX = ascii(EncodedMessage.CHOICES_SUFFIX + EncodedMessage.LINE_SEPARATOR);
+	private static final byte[] ID = ascii("{\"id\":\"");
+	private static final byte[] CHOICE = ascii("\",\"choice\":\"");
+	private static final byte[] INSTRUCTOR = ascii(",\"instructor\":true");
+	private static final byte[] TIME = ascii(",\"time\":");
+
+	private static final ThreadLocal<ChoicesEncoder> encoders = new ThreadLocal<ChoicesEncoder>() {
+		@Override
+		protected ChoicesEncoder initialValue() {
+			return new ChoicesEncoder();
+		}
+	};
+
+	private byte[] buffer = new byte[INITIAL_SIZE];
+	private int length;
+	private int count;
+
+	private ChoicesEncoder() {
+	}
+
+	// this thread's encoder, emptied for a new message
+	public static ChoicesEncoder begin() {
+		ChoicesEncoder encoder = encoders.get();
+		encoder.length = 0;
+		encoder.count = 0;
+		encoder.write(PREFIX);
+		return encoder;
+	}
+
+	// appends a choice, whose id and choice have to be plain
+	public void add(String id, String choice, boolean instructor, long time) {
+		if (!isPlain(id) || !isPlain(choice)) {
+			throw new IllegalArgumentException("Can't encode choice " + choice + " by " + id + " without escaping it");
+		}
+		// an id and choice are at most 1 byte a char, a long at most 20
+		ensureCapacity(id.length() + choice.length() + ID.length + CHOICE.length + INSTRUCTOR.length + TIME.length + 23);
+
+		if (count > 0) {
+			buffer[length++] = ',';
+		}
+		write(ID);
+		writeAscii(id);
+		write(CHOICE);
+		writeAscii(choice);
+		buffer[length++] = '"';
+		if (instructor) {
+			write(INSTRUCTOR);
+		}
+		write(TIME);
+		writeLong(time);
+		buffer[length++] = '}';
+		count++;
+	}
+
+	// the number of choices added since begin
+	public int size() {
+		return count;
+	}
+
+	// the message so far, encoded for every client to share
+	public EncodedMessage finish() {
+		write(SUFFIX);
+		return EncodedMessage.choices(Arrays.copyOf(buffer, length));
+	}
+
+	// true if Gson writes it as it is
+	public static boolean isPlain(String value) {
+		if (value == null) {
+			return false; // gson leaves the field out
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x20 || c > 0x7e || c == '"' || c == '\\' || c == '<' || c == '>' || c == '&' || c == '=' || c == '\'') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void write(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void writeAscii(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			buffer[length++] = (byte) value.charAt(i);
+		}
+	}
+
+	// the digits of value, the way Long.toString would write them
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			write(ascii(Long.toString(value)));
+			return;
+		}
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		for (int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	private void ensureCapacity(int more) {
+		if (length + more > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+		}
+	}
+
+	private static byte[] ascii(String value) {
+		byte[] bytes = new byte[value.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) value.charAt(i);
+		}
+		return bytes;
+	}
+}
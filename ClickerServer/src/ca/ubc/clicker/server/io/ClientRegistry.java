@@ -0,0 +1,58 @@
+package ca.ubc.clicker.server.io;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.client.ClientListener;
+
+/**
+ * The set of connected clients. Adding and removing are constant time and
+ * iteration never locks, so broadcasts can run while clients come and go.
+ * Clients remove themselves when they disconnect.
+ *
+ */
+public class ClientRegistry implements ClientListener, Iterable<ClickerClient> {
+	private final ConcurrentMap<Integer, ClickerClient> clients;
+	private final AtomicInteger size;
+	
+	public ClientRegistry() {
+		this.clients = new ConcurrentHashMap<Integer, ClickerClient>();
+		this.size = new AtomicInteger();
+	}
+	
+	public void add(ClickerClient client) {
+		if (clients.putIfAbsent(client.getId(), client) == null) {
+			size.incrementAndGet();
+		}
+		client.setListener(this);
+		
+		// disconnected before the listener was in place
+		if (!client.isAlive()) {
+			remove(client);
+		}
+	}
+	
+	public void remove(ClickerClient client) {
+		if (clients.remove(client.getId(), client)) {
+			size.decrementAndGet();
+		}
+	}
+	
+	public int size() {
+		return size.get();
+	}
+	
+	// weakly consistent: sees every client present for the whole iteration
+	@Override
+	public Iterator<ClickerClient> iterator() {
+		return clients.values().iterator();
+	}
+	
+	@Override
+	public void clientDisconnected(ClickerClient client) {
+		remove(client);
+	}
+}
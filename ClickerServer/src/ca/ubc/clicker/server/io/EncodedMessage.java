@@ -0,0 +1,199 @@
+package ca.ubc.clicker.server.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * An outgoing line already encoded as UTF-8 (including the line separator).
+ * A broadcast is encoded once and the same instance is handed to every
+ * client, which writes the shared bytes as they are. The binary frame for
+ * clients that switched protocols is encoded the first time one of them
+ * needs it and shared the same way. Immutable apart from that.
+ *
+ * A choices broadcast written by ChoicesEncoder starts out as bytes only, its
+ * text is decoded if something (a merge, a binary frame) asks for it.
+ *
+ * The protocol command's response also tells the client's writer to send
+ * everything after it in the other format, so nothing can be queued between
+ * the response and the switch.
+ *
+ */
+public final class EncodedMessage {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	
+	// how a choices broadcast is serialized, see ClickerServer.outputChoices
+	static final String CHOICES_PREFIX = "{\"type\":\"choices\",\"data\":[";
+	static final String CHOICES_SUFFIX = "]}";
+
+	private volatile String text; // decoded when first needed if it was encoded as bytes
+	private final byte[] bytes;
+	private final boolean choices;
+	private volatile byte[] frame; // see BinaryFrames, encoded when first needed
+	private final boolean protocolSwitch;
+	private final boolean binaryAfter;
+
+	private EncodedMessage(String text, byte[] bytes) {
+		this(text, bytes, text.startsWith(CHOICES_PREFIX) && text.endsWith(CHOICES_SUFFIX), false, false);
+	}
+	
+	private EncodedMessage(String text, byte[] bytes, boolean choices, boolean protocolSwitch, boolean binaryAfter) {
+		this.text = text;
+		this.bytes = bytes;
+		this.choices = choices;
+		this.protocolSwitch = protocolSwitch;
+		this.binaryAfter = binaryAfter;
+	}
+	
+	// the same message, after which the client is sent binary frames (or json lines if binary is false)
+	public EncodedMessage thenSwitchProtocol(boolean binary) {
+		return new EncodedMessage(getText(), bytes, false, true, binary);
+	}
+	
+	// the writer has to switch formats once this is written
+	public boolean isProtocolSwitch() {
+		return protocolSwitch;
+	}
+	
+	// what to switch to, true for binary frames
+	public boolean isBinaryAfter() {
+		return binaryAfter;
+	}
+
+	public static EncodedMessage encode(String message) {
+		return new EncodedMessage(message, (message + LINE_SEPARATOR).getBytes(UTF8));
+	}
+	
+	// a choices message ChoicesEncoder wrote, line separator included
+	static EncodedMessage choices(byte[] bytes) {
+		return new EncodedMessage(null, bytes, true, false, false);
+	}
+
+	// merges choices messages into one whose data holds all their choices in order
+	public static EncodedMessage mergeChoices(List<EncodedMessage> messages) {
+		StringBuilder merged = new StringBuilder(CHOICES_PREFIX);
+		boolean first = true;
+		for (EncodedMessage message : messages) {
+			String data = message.getChoicesData();
+			if (data.isEmpty()) {
+				continue;
+			}
+			if (!first) {
+				merged.append(',');
+			}
+			merged.append(data);
+			first = false;
+		}
+		merged.append(CHOICES_SUFFIX);
+		return encode(merged.toString());
+	}
+
+	// merges choices messages keeping only the latest choice of each clicker
+	public static EncodedMessage conflateChoices(List<EncodedMessage> messages) {
+		JsonParser parser = new JsonParser();
+		Map<Object, JsonElement> latest = new LinkedHashMap<Object, JsonElement>();
+		for (EncodedMessage message : messages) {
+			JsonArray choices = parser.parse("[" + message.getChoicesData() + "]").getAsJsonArray();
+			for (JsonElement choice : choices) {
+				Object key = choiceId(choice);
+				latest.remove(key); // so the order reflects the latest choices
+				latest.put(key, choice);
+			}
+		}
+		
+		StringBuilder conflated = new StringBuilder(CHOICES_PREFIX);
+		boolean first = true;
+		for (JsonElement choice : latest.values()) {
+			if (!first) {
+				conflated.append(',');
+			}
+			conflated.append(choice.toString());
+			first = false;
+		}
+		conflated.append(CHOICES_SUFFIX);
+		return encode(conflated.toString());
+	}
+	
+	// choices without an id are never conflated
+	private static Object choiceId(JsonElement choice) {
+		if (choice.isJsonObject()) {
+			JsonElement id = ((JsonObject) choice).get("id");
+			if (id != null && id.isJsonPrimitive()) {
+				return id.getAsString();
+			}
+		}
+		return new Object();
+	}
+
+	// a broadcast of votes, which can be merged with other choices messages
+	public boolean isChoices() {
+		return choices;
+	}
+
+	// the contents of the data array of a choices message
+	private String getChoicesData() {
+		String text = getText();
+		return text.substring(CHOICES_PREFIX.length(), text.length() - CHOICES_SUFFIX.length());
+	}
+
+	// the message without its line separator
+	public String getText() {
+		String decoded = text;
+		if (decoded == null) {
+			// like the frame, decoding it twice does no harm
+			decoded = new String(bytes, 0, bytes.length - LINE_SEPARATOR.length(), UTF8);
+			text = decoded;
+		}
+		return decoded;
+	}
+
+	public int length() {
+		return bytes.length;
+	}
+
+	// the message as a binary frame, encoding it if no client has needed it yet
+	private byte[] getFrame() {
+		byte[] encoded = frame;
+		if (encoded == null) {
+			// two clients may both encode it, either result will do
+			encoded = BinaryFrames.encode(getText());
+			frame = encoded;
+		}
+		return encoded;
+	}
+
+	// returns the number of bytes written
+	public int writeTo(OutputStream out) throws IOException {
+		return writeTo(out, false);
+	}
+
+	public int writeTo(OutputStream out, boolean binary) throws IOException {
+		byte[] written = binary ? getFrame() : bytes;
+		out.write(written);
+		return written.length;
+	}
+
+	// a read-only view over the shared bytes with its own position
+	public ByteBuffer toByteBuffer() {
+		return toByteBuffer(false);
+	}
+
+	public ByteBuffer toByteBuffer(boolean binary) {
+		return ByteBuffer.wrap(binary ? getFrame() : bytes).asReadOnlyBuffer();
+	}
+
+	@Override
+	public String toString() {
+		return getText();
+	}
+}
@@ -0,0 +1,215 @@
+package ca.ubc.clicker.server.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.ubc.clicker.server.filters.Filter;
+import ca.ubc.clicker.server.filters.SelectiveFilter;
+import ca.ubc.clicker.server.filters.StructuredFilter;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+
+/**
+ * The filters of a BaseIOServer, arranged when they are added into a chain
+ * for each command name and output type a SelectiveFilter asked for, plus one
+ * for everything else. Finding the chain for a message is a map lookup, and
+ * messages no filter wants get an empty chain.
+ *
+ * Each filter counts its calls and the time spent in them as the metrics
+ * filter.<class>.inputCalls, inputNanos, outputCalls and outputNanos.
+ *
+ */
+class FilterChains {
+	
+	// the filters a message goes through, in order
+	static final class Chain {
+		final Filter[] filters;
+		final FilterStats[] filterStats;
+		final StructuredFilter[] structuredFilters;
+		final FilterStats[] structuredStats;
+		
+		Chain(List<Filter> filters, List<StructuredFilter> structuredFilters, Map<Object, FilterStats> stats) {
+			this.filters = filters.toArray(new Filter[filters.size()]);
+			this.filterStats = new FilterStats[this.filters.length];
+			for (int i = 0; i < this.filters.length; i++) {
+				filterStats[i] = stats.get(this.filters[i]);
+			}
+			this.structuredFilters = structuredFilters.toArray(new StructuredFilter[structuredFilters.size()]);
+			this.structuredStats = new FilterStats[this.structuredFilters.length];
+			for (int i = 0; i < this.structuredFilters.length; i++) {
+				structuredStats[i] = stats.get(this.structuredFilters[i]);
+			}
+		}
+		
+		boolean isEmpty() {
+			return filters.length == 0 && structuredFilters.length == 0;
+		}
+	}
+	
+	static final class FilterStats {
+		private final Counter calls;
+		private final Counter nanos;
+		
+		FilterStats(String name, String direction) {
+			calls = Metrics.counter("filter." + name + "." + direction + "Calls");
+			nanos = Metrics.counter("filter." + name + "." + direction + "Nanos");
+		}
+		
+		// a call that started at start (System.nanoTime) just returned
+		void called(long start) {
+			calls.increment();
+			nanos.add(System.nanoTime() - start);
+		}
+	}
+	
+	// the chains for one direction
+	private static final class Index {
+		final Map<String, Chain> byType;
+		final Chain others;
+		
+		Index(Map<String, Chain> byType, Chain others) {
+			this.byType = byType;
+			this.others = others;
+		}
+	}
+	
+	private final List<Filter> filters = new ArrayList<Filter>();
+	private final List<StructuredFilter> structuredFilters = new ArrayList<StructuredFilter>();
+	private final Map<Object, FilterStats> inputStats = new HashMap<Object, FilterStats>();
+	private final Map<Object, FilterStats> outputStats = new HashMap<Object, FilterStats>();
+	private volatile Index input = new Index(new HashMap<String, Chain>(), new Chain(filters, structuredFilters, inputStats));
+	private volatile Index output = new Index(new HashMap<String, Chain>(), new Chain(filters, structuredFilters, outputStats));
+	
+	synchronized void add(Filter filter) {
+		filters.add(filter);
+		added(filter);
+	}
+	
+	synchronized void add(StructuredFilter filter) {
+		structuredFilters.add(filter);
+		added(filter);
+	}
+	
+	private void added(Object filter) {
+		String name = filter.getClass().getSimpleName();
+		inputStats.put(filter, new FilterStats(name, "input"));
+		outputStats.put(filter, new FilterStats(name, "output"));
+		input = index(true);
+		output = index(false);
+	}
+	
+	// builds a chain for every name any filter selects and one for the rest
+	private Index index(boolean forInput) {
+		Map<Object, FilterStats> stats = forInput ? inputStats : outputStats;
+		Set<String> types = new HashSet<String>();
+		for (Object filter : all()) {
+			Set<String> selected = selected(filter, forInput);
+			if (selected != null) {
+				types.addAll(selected);
+			}
+		}
+		
+		Map<String, Chain> byType = new HashMap<String, Chain>();
+		for (String type : types) {
+			byType.put(type, chain(type, forInput, stats));
+		}
+		return new Index(byType, chain(null, forInput, stats));
+	}
+	
+	// the filters that want type, or that want everything if type is null
+	private Chain chain(String type, boolean forInput, Map<Object, FilterStats> stats) {
+		List<Filter> chainFilters = new ArrayList<Filter>();
+		for (Filter filter : filters) {
+			if (wants(filter, type, forInput)) {
+				chainFilters.add(filter);
+			}
+		}
+		List<StructuredFilter> chainStructured = new ArrayList<StructuredFilter>();
+		for (StructuredFilter filter : structuredFilters) {
+			if (wants(filter, type, forInput)) {
+				chainStructured.add(filter);
+			}
+		}
+		return new Chain(chainFilters, chainStructured, stats);
+	}
+	
+	private static boolean wants(Object filter, String type, boolean forInput) {
+		Set<String> selected = selected(filter, forInput);
+		return selected == null || (type != null && selected.contains(type));
+	}
+	
+	// what a selective filter asked for, null if it wants everything
+	private static Set<String> selected(Object filter, boolean forInput) {
+		if (!(filter instanceof SelectiveFilter)) {
+			return null;
+		}
+		SelectiveFilter selective = (SelectiveFilter) filter;
+		return forInput ? selective.getInputCommands() : selective.getOutputTypes();
+	}
+	
+	private List<Object> all() {
+		List<Object> all = new ArrayList<Object>(filters);
+		all.addAll(structuredFilters);
+		return all;
+	}
+	
+	// false if every message goes through the same input chain, so there is no need to find the command name
+	boolean isInputSelective() {
+		return !input.byType.isEmpty();
+	}
+	
+	boolean isOutputSelective() {
+		return !output.byType.isEmpty();
+	}
+	
+	// the chain for a command, null for input that isn't one
+	Chain input(String command) {
+		return find(input, command);
+	}
+	
+	// the chain for a type of output, null for output without one
+	Chain output(String type) {
+		return find(output, type);
+	}
+	
+	private static Chain find(Index index, String type) {
+		if (type == null) {
+			return index.others;
+		}
+		Chain chain = index.byType.get(type);
+		return chain == null ? index.others : chain;
+	}
+	
+	// e.g. "choices: MultipleInstructorFilter" for each chain, for the log
+	List<String> describe() {
+		List<String> lines = new ArrayList<String>();
+		describe(lines, "input", input);
+		describe(lines, "output", output);
+		return lines;
+	}
+	
+	private static void describe(List<String> lines, String direction, Index index) {
+		for (Map.Entry<String, Chain> entry : index.byType.entrySet()) {
+			lines.add(direction + " " + entry.getKey() + ": " + names(entry.getValue()));
+		}
+		lines.add(direction + (index.byType.isEmpty() ? "" : " other") + ": " + names(index.others));
+	}
+	
+	private static String names(Chain chain) {
+		if (chain.isEmpty()) {
+			return "none";
+		}
+		StringBuilder names = new StringBuilder();
+		for (Filter filter : chain.filters) {
+			names.append(names.length() == 0 ? "" : ", ").append(filter.getClass().getSimpleName());
+		}
+		for (StructuredFilter filter : chain.structuredFilters) {
+			names.append(names.length() == 0 ? "" : ", ").append(filter.getClass().getSimpleName());
+		}
+		return names.toString();
+	}
+}
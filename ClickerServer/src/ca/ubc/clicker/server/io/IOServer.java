@@ -4,6 +4,8 @@ import java.io.IOException;
 
 import ca.ubc.clicker.client.ClickerClient;
 import ca.ubc.clicker.server.filters.Filter;
+import ca.ubc.clicker.server.filters.StructuredFilter;
+import ca.ubc.clicker.server.messages.ResponseMessage;
 
 public interface IOServer {
 
@@ -18,10 +20,33 @@ public interface IOServer {
 
 	// sends output just to specified client
 	public abstract void output(String message, ClickerClient client);
+	
+	// sends a message that hasn't been serialized yet, to all the clients if client is null
+	public abstract void output(ResponseMessage message, ClickerClient client);
+	
+	// sends a message that hasn't been serialized yet to each of the clients, e.g. the members of a session
+	void output(ResponseMessage message, Iterable<ClickerClient> clients);
+	
+	// like output(ResponseMessage, ...), to the client or else each of the clients (all of them if both are null), also
+	// logging the message as it was serialized for them under label, so it isn't serialized a second time for the log
+	void outputLogged(ResponseMessage message, ClickerClient client, Iterable<ClickerClient> clients, String label);
+	
+	// true if output of this type goes through filters, which need it as a ResponseMessage rather than encoded
+	boolean isOutputFiltered(String type);
+	
+	// sends a message encoded without going through the filters to each of the clients, to all of them if clients is null
+	void output(EncodedMessage message, Iterable<ClickerClient> clients);
 
 	public abstract void run() throws IOException, InterruptedException;
 
 	abstract boolean initializeFilter(Filter filter);
 	
+	boolean initializeFilter(StructuredFilter filter);
+	
+	// called once all the filters have been initialized, before clients can connect
+	void filtersLoaded();
+	
 	int getNumClients();
+	
+	Iterable<ClickerClient> getClients();
 }
\ No newline at end of file
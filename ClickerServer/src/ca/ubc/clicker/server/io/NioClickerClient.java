@@ -0,0 +1,192 @@
+package ca.ubc.clicker.server.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.client.ClientOutputQueue;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+
+/**
+ * A client connection serviced by an NioEventLoop rather than its own threads.
+ * Incoming bytes are split into lines the same way BufferedReader.readLine does
+ * (\n, \r or \r\n) and outgoing messages are terminated the way PrintWriter.println
+ * would, so clients can't tell the transports apart.
+ *
+ */
+public class NioClickerClient extends ClickerClient {
+	private static Logger log = LogManager.getLogger();
+	private static final Counter messagesWritten = Metrics.counter("client.messagesWritten");
+	private static final Counter bytesWritten = Metrics.counter("client.bytesWritten");
+	private static final Counter writeStalls = Metrics.counter("client.writeStalls"); // socket full, waiting to be writable
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final int MAX_LINE_LENGTH = 1 << 20;
+
+	private final SocketChannel channel;
+	private final NioEventLoop eventLoop;
+	private SelectionKey key; // only accessed on the event loop
+
+	private final ByteBuffer readBuffer;
+	private byte[] line;
+	private int lineLength = 0;
+	private boolean skipLF = false;
+
+	private final ClientOutputQueue writeQueue;
+	private ByteBuffer writing; // partially written message, event loop only
+	private boolean binary = false; // writing binary frames, see BinaryFrames. event loop only.
+	private final AtomicBoolean writeScheduled;
+
+	public NioClickerClient(SocketChannel channel, NioEventLoop eventLoop, IOServer server) {
+		super(server);
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.line = new byte[256];
+		this.writeQueue = getOutputQueue();
+		this.writeScheduled = new AtomicBoolean(false);
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setSelectionKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	// output was queued by ClickerClient.output, make sure the event loop will write it. safe to call from any thread.
+	@Override
+	protected void messageQueued() {
+		if (writeScheduled.compareAndSet(false, true)) {
+			eventLoop.requestWrite(this);
+		}
+	}
+
+	// reads what is available and passes any complete lines on as input. event loop only.
+	void read() {
+		try {
+			readBuffer.clear();
+			int numRead = channel.read(readBuffer);
+			if (numRead == -1) {
+				close();
+				return;
+			}
+
+			byte[] bytes = readBuffer.array();
+			for (int i = 0; i < numRead; i++) {
+				byte b = bytes[i];
+				if (b == '\n') {
+					if (skipLF) {
+						skipLF = false;
+					} else {
+						endLine();
+					}
+				} else if (b == '\r') {
+					endLine();
+					skipLF = true;
+				} else {
+					skipLF = false;
+					if (!appendToLine(b)) {
+						return; // closed, the rest is never read
+					}
+				}
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	// false if the line is too long, which closes the client
+	private boolean appendToLine(byte b) {
+		if (lineLength == line.length) {
+			if (line.length >= MAX_LINE_LENGTH) {
+				log.warn("Line too long from " + this + ", disconnecting");
+				close();
+				return false;
+			}
+			byte[] larger = new byte[line.length * 2];
+			System.arraycopy(line, 0, larger, 0, lineLength);
+			line = larger;
+		}
+		line[lineLength++] = b;
+		return true;
+	}
+
+	private void endLine() {
+		String inputLine = new String(line, 0, lineLength, UTF8);
+		lineLength = 0;
+		if (isAlive()) {
+			input(inputLine);
+		}
+	}
+
+	// writes as much queued output as the socket will take. event loop only.
+	void flush() {
+		if (key == null || !isAlive()) { // not registered yet; registration will flush
+			return;
+		}
+
+		try {
+			while (true) {
+				if (writing == null) {
+					EncodedMessage message = writeQueue.poll();
+					if (message == null) {
+						break;
+					}
+					writing = message.toByteBuffer(binary);
+					if (message.isProtocolSwitch()) {
+						binary = message.isBinaryAfter();
+					}
+				}
+				
+				bytesWritten.add(channel.write(writing));
+				if (writing.hasRemaining()) {
+					// socket is full, wait until it is writable again
+					writeStalls.increment();
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				writing = null;
+				messagesWritten.increment();
+			}
+
+			key.interestOps(SelectionKey.OP_READ);
+			writeScheduled.set(false);
+
+			// output may have been queued between draining and clearing the flag
+			if (!writeQueue.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+				eventLoop.requestWrite(this);
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (!disconnected()) {
+			return;
+		}
+		writeQueue.clear();
+
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+			log.info("Client " + getId() + " disconnected.");
+		} catch (IOException e) {
+			log.error("Error closing socket for client " + getId());
+		}
+	}
+}
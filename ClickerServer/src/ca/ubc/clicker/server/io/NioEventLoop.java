@@ -0,0 +1,106 @@
+package ca.ubc.clicker.server.io;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Owns a selector and services reads and writes for the clients registered
+ * with it. Other threads hand work to the loop through the pending queues and
+ * wake the selector; the channels themselves are only touched on this thread.
+ *
+ */
+public class NioEventLoop extends Thread {
+	private static Logger log = LogManager.getLogger();
+
+	private final Selector selector;
+	private final Queue<NioClickerClient> pendingRegistrations;
+	private final Queue<NioClickerClient> pendingWrites;
+
+	public NioEventLoop(int id) throws IOException {
+		super("NioEventLoop" + id);
+		this.selector = Selector.open();
+		this.pendingRegistrations = new ConcurrentLinkedQueue<NioClickerClient>();
+		this.pendingWrites = new ConcurrentLinkedQueue<NioClickerClient>();
+		setDaemon(true);
+		start();
+	}
+
+	// called from the accepting thread
+	void register(NioClickerClient client) {
+		pendingRegistrations.add(client);
+		selector.wakeup();
+	}
+
+	// called from any thread that queued output for the client
+	void requestWrite(NioClickerClient client) {
+		pendingWrites.add(client);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+
+				processRegistrations();
+				processWrites();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					NioClickerClient client = (NioClickerClient) key.attachment();
+					if (!key.isValid()) {
+						client.close();
+						continue;
+					}
+					// input runs the string filters on this thread, so anything they throw only costs this client
+					try {
+						if (key.isReadable()) {
+							client.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							client.flush();
+						}
+					} catch (RuntimeException e) {
+						log.error("Error handling " + client + ", disconnecting", e);
+						client.close();
+					}
+				}
+			} catch (IOException e) {
+				log.error("IOException in " + getName() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void processRegistrations() {
+		NioClickerClient client;
+		while ((client = pendingRegistrations.poll()) != null) {
+			try {
+				SelectionKey key = client.getChannel().register(selector, SelectionKey.OP_READ, client);
+				client.setSelectionKey(key);
+				// anything queued before registration completed
+				client.flush();
+			} catch (ClosedChannelException e) {
+				client.close();
+			}
+		}
+	}
+
+	private void processWrites() {
+		NioClickerClient client;
+		while ((client = pendingWrites.poll()) != null) {
+			client.flush();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package ca.ubc.clicker.server.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An IOServer that multiplexes all client sockets over a small fixed pool of
+ * selector threads instead of running an input and output thread per client.
+ * Speaks the same line-delimited protocol as BaseIOServer.
+ *
+ */
+public class NioIOServer extends BaseIOServer {
+	private static Logger log = LogManager.getLogger();
+
+	public static final int DEFAULT_EVENT_LOOPS = 2;
+
+	private final NioEventLoop[] eventLoops;
+	private int nextEventLoop = 0;
+
+	public NioIOServer(int serverPort, int numEventLoops) {
+		super(serverPort);
+		this.eventLoops = new NioEventLoop[Math.max(1, numEventLoops)];
+	}
+
+	public NioIOServer(int serverPort, IOServer composedServer, int numEventLoops) {
+		super(serverPort, composedServer);
+		this.eventLoops = new NioEventLoop[Math.max(1, numEventLoops)];
+	}
+
+	@Override
+	protected void listen() throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(getServerPort()));
+
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new NioEventLoop(i + 1);
+		}
+		log.info("Successfully listening on port " + getServerPort() + " (nio, " + eventLoops.length + " event loops)");
+
+		// accept client connections; the server channel stays blocking since it has its own thread
+		try {
+			while (true) {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				NioEventLoop eventLoop = eventLoops[nextEventLoop];
+				nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+				NioClickerClient client = new NioClickerClient(channel, eventLoop, this);
+				addClient(client);
+				eventLoop.register(client);
+			}
+		} catch (IOException e) {
+			log.warn("Server socket accept failed on port: " + getServerPort());
+			System.exit(-1);
+		}
+
+		serverChannel.close();
+	}
+}
@@ -0,0 +1,376 @@
+package ca.ubc.clicker.server.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.enums.ButtonEnum;
+import ca.ubc.clicker.server.ServerConfig;
+import ca.ubc.clicker.server.ServerThreads;
+
+/**
+ * Append-only binary journal of every vote the server accepts, written instead
+ * of the clicks log. Callers only encode a ClickRecord into a buffer; the
+ * ClickJournalThread swaps that buffer for an empty one and writes it out with
+ * a FileChannel, so disk latency never holds up the votes being broadcast.
+ * 
+ * The journal is a directory of segments named clicks-NNNNNNNN.journal. Each
+ * starts with a one record header and holds at most journalSegmentSize bytes,
+ * after which the next segment is started. Every run starts a new segment.
+ * See ClickJournalDump to turn segments back into text.
+ * 
+ * The journal thread also keeps a SessionState up to date with what it has
+ * written and saves it to the snapshot file every journalSnapshotInterval ms
+ * while it changes, so JournalRecovery has little to replay after a restart.
+ *
+ */
+public class ClickJournal implements Runnable {
+	private static Logger log = LogManager.getLogger();
+	
+	public static final String DEFAULT_DIR = "journal";
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final FsyncPolicy DEFAULT_FSYNC = FsyncPolicy.INTERVAL;
+	public static final long DEFAULT_FSYNC_INTERVAL = 1000;
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 10000;
+	
+	static final int MAGIC = 0x434c4b4a; // CLKJ
+	static final short VERSION = 1;
+	private static final String SEGMENT_PREFIX = "clicks-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final int INITIAL_BUFFER_RECORDS = 1024;
+	private static final long CLOSE_TIMEOUT = 5000;
+	
+	private final File dir;
+	private final long segmentSize;
+	private final FsyncPolicy fsync;
+	private final long fsyncInterval;
+	private final long snapshotInterval; // 0 to never snapshot
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private ByteBuffer pending; // records waiting to be written, guarded by lock
+	private boolean closed = false; // guarded by lock
+	
+	// only used by the journal thread
+	private ByteBuffer writing;
+	private FileChannel channel;
+	private int segmentNumber;
+	private long segmentPosition;
+	private boolean unsynced = false;
+	private long lastSync;
+	private final SessionState state;
+	private final ClickRecord written = new ClickRecord();
+	private boolean snapshotDirty = false;
+	private long lastSnapshot;
+	
+	private final Thread thread;
+	
+	// segmentSize is rounded down to whole records. state is what the journal already holds, e.g. from JournalRecovery, or null.
+	public ClickJournal(File dir, long segmentSize, FsyncPolicy fsync, long fsyncInterval, long snapshotInterval, SessionState state) throws IOException {
+		this.dir = dir;
+		this.segmentSize = Math.max(2, segmentSize / ClickRecord.SIZE) * ClickRecord.SIZE;
+		this.fsync = fsync;
+		this.fsyncInterval = fsyncInterval;
+		this.snapshotInterval = Math.max(0, snapshotInterval);
+		this.state = state != null ? state.copy() : new SessionState(); // the journal thread's own
+		this.pending = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * ClickRecord.SIZE);
+		this.writing = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * ClickRecord.SIZE);
+		
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create journal directory " + dir.getAbsolutePath());
+		}
+		List<File> segments = segments(dir);
+		segmentNumber = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1));
+		openNextSegment();
+		lastSync = lastSnapshot = System.currentTimeMillis();
+		log.info("Journaling clicks to " + dir.getAbsolutePath() + " (fsync " + fsync + ")");
+		
+		thread = ServerThreads.start(this, "ClickJournalThread");
+	}
+	
+	public ClickJournal(ServerConfig config, SessionState state) throws IOException {
+		this(directory(config), config.getLong("journalSegmentSize", DEFAULT_SEGMENT_SIZE), fsyncPolicy(config),
+				config.getLong("journalFsyncInterval", DEFAULT_FSYNC_INTERVAL), config.getLong("journalSnapshotInterval", DEFAULT_SNAPSHOT_INTERVAL), state);
+	}
+	
+	public static File directory(ServerConfig config) {
+		return new File(config.getString("journalDir", DEFAULT_DIR));
+	}
+	
+	private static FsyncPolicy fsyncPolicy(ServerConfig config) {
+		String policy = config.getString("journalFsync", DEFAULT_FSYNC.name());
+		try {
+			return FsyncPolicy.fromString(policy);
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown journalFsync " + policy + ", using " + DEFAULT_FSYNC);
+			return DEFAULT_FSYNC;
+		}
+	}
+	
+	// journals a vote
+	public void click(long time, String id, ButtonEnum button, byte source, boolean instructor) {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			boolean wasEmpty = reserve();
+			ClickRecord.writeClick(pending, time, id, button, source, instructor);
+			if (wasEmpty) {
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// journals a START or STOP
+	public void event(byte type, long time) {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			boolean wasEmpty = reserve();
+			ClickRecord.writeEvent(pending, type, time);
+			if (wasEmpty) {
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// makes room for one more record, growing the buffer if the journal thread has fallen behind. returns whether it was empty.
+	private boolean reserve() {
+		if (pending.remaining() < ClickRecord.SIZE) {
+			ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		return pending.position() == 0;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				ByteBuffer batch;
+				boolean closing;
+				lock.lock();
+				try {
+					while (pending.position() == 0 && !closed) {
+						long deadline = nextDeadline();
+						if (deadline == Long.MAX_VALUE) {
+							notEmpty.await();
+						} else {
+							long wait = deadline - System.currentTimeMillis();
+							if (wait <= 0) {
+								break;
+							}
+							notEmpty.await(wait, TimeUnit.MILLISECONDS);
+						}
+					}
+					batch = pending;
+					pending = writing;
+					writing = batch;
+					closing = closed;
+				} finally {
+					lock.unlock();
+				}
+				
+				batch.flip();
+				write(batch);
+				batch.clear();
+				sync(closing);
+				snapshot(closing);
+				
+				if (closing) {
+					channel.close();
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			log.error("Interrupted: " + e.getMessage());
+		} catch (IOException e) {
+			log.error("Error writing click journal, clicks are no longer journaled: " + e.getMessage());
+		}
+		
+		lock.lock();
+		try {
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// writes whole records, starting new segments as they fill up
+	private void write(ByteBuffer batch) throws IOException {
+		int limit = batch.limit();
+		while (batch.position() < limit) {
+			if (segmentPosition >= segmentSize) {
+				if (fsync != FsyncPolicy.NEVER) {
+					channel.force(false);
+				}
+				channel.close();
+				openNextSegment();
+			}
+			
+			batch.limit((int) Math.min(limit, batch.position() + segmentSize - segmentPosition));
+			int start = batch.position();
+			while (batch.hasRemaining()) {
+				channel.write(batch);
+			}
+			segmentPosition += batch.position() - start;
+			unsynced = true;
+			if (snapshotInterval > 0) {
+				applyWritten(batch, start);
+			}
+			batch.limit(limit);
+		}
+	}
+	
+	// brings the session state up to date with the records just written
+	private void applyWritten(ByteBuffer batch, int start) {
+		ByteBuffer records = batch.duplicate();
+		records.position(start);
+		while (records.remaining() >= ClickRecord.SIZE) {
+			written.read(records);
+			state.apply(written);
+		}
+		state.setPosition(segmentNumber, segmentPosition);
+		snapshotDirty = true;
+	}
+	
+	// when the journal thread has to wake up even if nothing is journaled, Long.MAX_VALUE if it doesn't
+	private long nextDeadline() {
+		long deadline = Long.MAX_VALUE;
+		if (unsynced && fsync == FsyncPolicy.INTERVAL) {
+			deadline = lastSync + fsyncInterval;
+		}
+		if (snapshotDirty) {
+			deadline = Math.min(deadline, lastSnapshot + snapshotInterval);
+		}
+		return deadline;
+	}
+	
+	private void sync(boolean closing) throws IOException {
+		if (!unsynced || fsync == FsyncPolicy.NEVER) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (fsync == FsyncPolicy.ALWAYS || closing || now - lastSync >= fsyncInterval) {
+			channel.force(false);
+			unsynced = false;
+			lastSync = now;
+		}
+	}
+	
+	// saved after syncing so, unless fsync is off, a snapshot never covers records the disk might not have
+	private void snapshot(boolean closing) {
+		long now = System.currentTimeMillis();
+		if (!snapshotDirty || (!closing && now - lastSnapshot < snapshotInterval)) {
+			return;
+		}
+		try {
+			state.save(JournalRecovery.snapshotFile(dir));
+		} catch (IOException e) {
+			log.error("Could not write journal snapshot: " + e.getMessage());
+		}
+		snapshotDirty = false;
+		lastSnapshot = now;
+	}
+	
+	private void openNextSegment() throws IOException {
+		File file;
+		do {
+			segmentNumber++;
+			file = new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+		} while (file.exists());
+		
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		ByteBuffer header = ByteBuffer.allocate(ClickRecord.SIZE);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putShort((short) ClickRecord.SIZE);
+		header.putLong(System.currentTimeMillis());
+		header.clear();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		segmentPosition = ClickRecord.SIZE;
+		log.info("Started journal segment " + file.getName());
+	}
+	
+	// writes out everything journaled so far and stops the journal thread
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		
+		try {
+			thread.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			log.error("Interrupted closing click journal");
+		}
+	}
+	
+	public File getDir() {
+		return dir;
+	}
+	
+	// the segments in the directory, oldest first
+	public static List<File> segments(File dir) {
+		List<File> segments = new ArrayList<File>();
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return segments;
+		}
+		for (File file : files) {
+			if (segmentNumber(file) > 0) {
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				int numberA = segmentNumber(a), numberB = segmentNumber(b);
+				return numberA < numberB ? -1 : (numberA == numberB ? 0 : 1);
+			}
+		});
+		return segments;
+	}
+	
+	// the number in the segment's name, 0 if it isn't named like a segment
+	public static int segmentNumber(File segment) {
+		String name = segment.getName();
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package ca.ubc.clicker.server.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints click journal segments as text, one id:BUTTON line per vote like
+ * the clicks log (votes journaled again by a recovery are left out). With -v, every record is printed with its time, the source
+ * of clicks and whether it came from the instructor, along with when voting
+ * started and stopped.
+ * 
+ * Usage: java ClickJournalDump [-v] [journal-dir | segment ...]
+ *
+ */
+public class ClickJournalDump {
+	
+	public static void main(String[] args) throws IOException {
+		boolean verbose = false;
+		List<File> segments = new ArrayList<File>();
+		for (String arg : args) {
+			if ("-v".equals(arg)) {
+				verbose = true;
+			} else {
+				addSegments(new File(arg), segments);
+			}
+		}
+		if (segments.isEmpty()) {
+			addSegments(new File(ClickJournal.DEFAULT_DIR), segments);
+		}
+		
+		ClickRecord record = new ClickRecord();
+		for (File segment : segments) {
+			ClickJournalReader reader = new ClickJournalReader(segment);
+			try {
+				while (reader.next(record)) {
+					if (verbose) {
+						System.out.println(record.toVerboseString());
+					} else if (record.type == ClickRecord.CLICK && record.source != ClickRecord.SOURCE_RECOVERY) {
+						System.out.println(record);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+	
+	private static void addSegments(File file, List<File> segments) {
+		if (file.isDirectory()) {
+			segments.addAll(ClickJournal.segments(file));
+		} else {
+			segments.add(file);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package ca.ubc.clicker.server.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of one click journal segment in order. A record cut
+ * short by a crash at the end of the segment is ignored.
+ *
+ */
+public class ClickJournalReader {
+	private static final int BUFFER_RECORDS = 1024;
+	
+	private final File segment;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final long created;
+	private long position; // offset of the next record
+	
+	public ClickJournalReader(File segment) throws IOException {
+		this.segment = segment;
+		this.channel = new RandomAccessFile(segment, "r").getChannel();
+		this.buffer = ByteBuffer.allocate(BUFFER_RECORDS * ClickRecord.SIZE);
+		
+		ByteBuffer header = ByteBuffer.allocate(ClickRecord.SIZE);
+		while (header.hasRemaining() && channel.read(header) != -1);
+		header.flip();
+		if (header.remaining() < ClickRecord.SIZE || header.getInt() != ClickJournal.MAGIC) {
+			channel.close();
+			throw new IOException(segment + " is not a click journal segment");
+		}
+		short version = header.getShort();
+		short recordSize = header.getShort();
+		if (version != ClickJournal.VERSION || recordSize != ClickRecord.SIZE) {
+			channel.close();
+			throw new IOException(segment + " has unsupported journal version " + version);
+		}
+		this.created = header.getLong();
+		this.position = ClickRecord.SIZE;
+		buffer.flip(); // empty
+	}
+	
+	// reads the next record into record, false at the end of the segment
+	public boolean next(ClickRecord record) throws IOException {
+		if (buffer.remaining() < ClickRecord.SIZE) {
+			buffer.compact();
+			while (buffer.hasRemaining() && channel.read(buffer) > 0);
+			buffer.flip();
+			if (buffer.remaining() < ClickRecord.SIZE) {
+				return false;
+			}
+		}
+		record.read(buffer);
+		if (record.type == ClickRecord.EMPTY) {
+			buffer.position(buffer.position() - ClickRecord.SIZE);
+			return false;
+		}
+		position += ClickRecord.SIZE;
+		return true;
+	}
+	
+	// continue reading from the given offset, e.g. one returned by getPosition earlier
+	public void seek(long offset) throws IOException {
+		channel.position(offset);
+		buffer.clear();
+		buffer.flip();
+		position = offset;
+	}
+	
+	// offset of the next record
+	public long getPosition() {
+		return position;
+	}
+	
+	// when the segment was started, ms since the epoch
+	public long getCreated() {
+		return created;
+	}
+	
+	public File getSegment() {
+		return segment;
+	}
+	
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,130 @@
+package ca.ubc.clicker.server.journal;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import ca.ubc.clicker.enums.ButtonEnum;
+
+/**
+ * One fixed-width record of the click journal: a vote, or voting being
+ * enabled or disabled. Records are SIZE bytes, laid out as
+ * 
+ *   0  time          8 bytes, ms since the epoch
+ *   8  type          CLICK, START or STOP
+ *   9  button        ButtonEnum ordinal, -1 for none
+ *   10 source        SOURCE_BASE_STATION, SOURCE_CLIENT or SOURCE_RECOVERY
+ *   11 flags         FLAG_INSTRUCTOR
+ *   12 id length
+ *   13 id            up to MAX_ID_LENGTH ascii bytes, zero padded
+ *
+ * A record object is reused by readers, see ClickJournalReader.next.
+ *
+ */
+public class ClickRecord {
+	public static final int SIZE = 32;
+	public static final int MAX_ID_LENGTH = SIZE - 13;
+	
+	// an all zero record, i.e. nothing written there
+	public static final byte EMPTY = 0;
+	public static final byte CLICK = 1;
+	public static final byte START = 2; // started accepting votes
+	public static final byte STOP = 3;  // stopped accepting votes
+	
+	public static final byte SOURCE_BASE_STATION = 0;
+	public static final byte SOURCE_CLIENT = 1; // a choose command
+	public static final byte SOURCE_RECOVERY = 2; // journaled again when restoring a recovered session
+	
+	private static final int FLAG_INSTRUCTOR = 1;
+	private static final ButtonEnum[] BUTTONS = ButtonEnum.values();
+	
+	public long time;
+	public byte type;
+	public String id;
+	public ButtonEnum button;
+	public byte source;
+	public boolean instructor;
+	
+	// appends a click record. ids longer than MAX_ID_LENGTH are cut short, non-ascii characters become '?'
+	static void writeClick(ByteBuffer buffer, long time, String id, ButtonEnum button, byte source, boolean instructor) {
+		int start = buffer.position();
+		buffer.putLong(time);
+		buffer.put(CLICK);
+		buffer.put(button == null ? -1 : (byte) button.ordinal());
+		buffer.put(source);
+		buffer.put((byte) (instructor ? FLAG_INSTRUCTOR : 0));
+		
+		int length = id == null ? 0 : Math.min(id.length(), MAX_ID_LENGTH);
+		buffer.put((byte) length);
+		for (int i = 0; i < length; i++) {
+			char c = id.charAt(i);
+			buffer.put(c < 128 ? (byte) c : (byte) '?');
+		}
+		pad(buffer, start);
+	}
+	
+	// appends a START or STOP record
+	static void writeEvent(ByteBuffer buffer, byte type, long time) {
+		int start = buffer.position();
+		buffer.putLong(time);
+		buffer.put(type);
+		buffer.put((byte) -1);
+		pad(buffer, start);
+	}
+	
+	private static void pad(ByteBuffer buffer, int start) {
+		while (buffer.position() < start + SIZE) {
+			buffer.put((byte) 0);
+		}
+	}
+	
+	// reads the record at the buffer's position, advancing it by SIZE
+	void read(ByteBuffer buffer) {
+		int start = buffer.position();
+		time = buffer.getLong();
+		type = buffer.get();
+		int ordinal = buffer.get();
+		button = ordinal >= 0 && ordinal < BUTTONS.length ? BUTTONS[ordinal] : null;
+		source = buffer.get();
+		instructor = (buffer.get() & FLAG_INSTRUCTOR) != 0;
+		
+		int length = Math.min(buffer.get(), MAX_ID_LENGTH);
+		if (type == CLICK) {
+			char[] chars = new char[Math.max(0, length)];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) buffer.get();
+			}
+			id = new String(chars);
+		} else {
+			id = null;
+		}
+		buffer.position(start + SIZE);
+	}
+	
+	// the same id:BUTTON form the clicks log uses
+	@Override
+	public String toString() {
+		switch (type) {
+		case CLICK:
+			return id + ":" + button;
+		case START:
+			return "START";
+		case STOP:
+			return "STOP";
+		default:
+			return "UNKNOWN(" + type + ")";
+		}
+	}
+	
+	// time, source and instructor flag as well
+	public String toVerboseString() {
+		String str = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS").format(new Date(time)) + " " + toString();
+		if (type == CLICK) {
+			str += source == SOURCE_CLIENT ? " client" : (source == SOURCE_RECOVERY ? " recovered" : " base-station");
+			if (instructor) {
+				str += " instructor";
+			}
+		}
+		return str;
+	}
+}
@@ -0,0 +1,15 @@
+package ca.ubc.clicker.server.journal;
+
+/**
+ * When the click journal forces what it has written out to disk.
+ *
+ */
+public enum FsyncPolicy {
+	NEVER,    // leave it to the operating system
+	INTERVAL, // at most every journalFsyncInterval ms while there is unsynced data
+	ALWAYS;   // after every write, slowest but loses nothing on a power failure
+
+	public static FsyncPolicy fromString(String value) {
+		return valueOf(value.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -0,0 +1,74 @@
+package ca.ubc.clicker.server.journal;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Rebuilds the SessionState after a restart: loads the latest snapshot from
+ * the journal directory and replays only the records written after it. The
+ * journal thread snapshots every journalSnapshotInterval ms, so there is never
+ * much to replay. Without a usable snapshot every segment is replayed.
+ *
+ */
+public class JournalRecovery {
+	private static Logger log = LogManager.getLogger();
+	
+	static final String SNAPSHOT_FILE = "snapshot";
+	
+	public static File snapshotFile(File dir) {
+		return new File(dir, SNAPSHOT_FILE);
+	}
+	
+	public static SessionState recover(File dir) throws IOException {
+		long start = System.nanoTime();
+		
+		SessionState state = null;
+		File snapshot = snapshotFile(dir);
+		if (snapshot.exists()) {
+			try {
+				state = SessionState.load(snapshot);
+			} catch (IOException e) {
+				log.warn("Ignoring unreadable snapshot " + snapshot + ": " + e.getMessage());
+			}
+		}
+		if (state == null) {
+			state = new SessionState();
+		}
+		
+		int replayed = 0;
+		ClickRecord record = new ClickRecord();
+		for (File segment : ClickJournal.segments(dir)) {
+			int number = ClickJournal.segmentNumber(segment);
+			if (number < state.getSegment()) {
+				continue;
+			}
+			
+			ClickJournalReader reader;
+			try {
+				reader = new ClickJournalReader(segment);
+			} catch (IOException e) {
+				log.warn("Skipping " + segment.getName() + ": " + e.getMessage()); // e.g. crashed before writing the header
+				continue;
+			}
+			try {
+				if (number == state.getSegment()) {
+					reader.seek(state.getOffset());
+				}
+				while (reader.next(record)) {
+					state.apply(record);
+					replayed++;
+				}
+				state.setPosition(number, reader.getPosition());
+			} finally {
+				reader.close();
+			}
+		}
+		
+		log.info(String.format("Recovered session in %.1f ms, replayed %d records after the snapshot: %s, %d choices",
+				(System.nanoTime() - start) / 1e6, replayed, state.isAccepting() ? "accepting" : "not accepting", state.getChoices().size()));
+		return state;
+	}
+}
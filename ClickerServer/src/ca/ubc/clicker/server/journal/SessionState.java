@@ -0,0 +1,176 @@
+package ca.ubc.clicker.server.journal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import ca.ubc.clicker.enums.ButtonEnum;
+import ca.ubc.clicker.server.util.ClickerIdMap;
+
+/**
+ * What the click journal says the server was doing: whether votes were being
+ * accepted, when the current question started and the latest choice of each
+ * student since then. Built by applying records in order, along with the
+ * journal position it covers so recovery knows where to continue from.
+ * 
+ * Snapshots of it are written by the ClickJournalThread, see JournalRecovery.
+ * Not thread safe.
+ *
+ */
+public class SessionState {
+	private static final int SNAPSHOT_MAGIC = 0x434c4b53; // CLKS
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final ButtonEnum[] BUTTONS = ButtonEnum.values();
+	
+	private boolean accepting = false;
+	private long questionStart = 0; // time of the last START, 0 if there hasn't been one
+	private int questions = 0; // number of STARTs
+	private final ClickerIdMap choices = new ClickerIdMap(); // student choices since the last START, as button ordinals
+	
+	// everything in the journal before this position has been applied
+	private int segment = 0;
+	private long offset = 0;
+	
+	public void apply(ClickRecord record) {
+		switch (record.type) {
+		case ClickRecord.START:
+			accepting = true;
+			questionStart = record.time;
+			questions++;
+			choices.clear();
+			break;
+		case ClickRecord.STOP:
+			accepting = false;
+			break;
+		case ClickRecord.CLICK:
+			// the instructor's clicks are controls, not answers (see ClickerServer.outputChoices)
+			if (!record.instructor && record.button != null) {
+				choices.put(record.id, record.button.ordinal(), record.time);
+			}
+			break;
+		}
+	}
+	
+	public SessionState copy() {
+		SessionState copy = new SessionState();
+		copy.accepting = accepting;
+		copy.questionStart = questionStart;
+		copy.questions = questions;
+		for (int slot = 0; slot < choices.capacity(); slot++) {
+			if (choices.keyAt(slot) != null) {
+				copy.choices.put(choices.keyAt(slot), choices.valueAt(slot), choices.timeAt(slot));
+			}
+		}
+		copy.segment = segment;
+		copy.offset = offset;
+		return copy;
+	}
+	
+	// nothing that says what the server was doing
+	public boolean isEmpty() {
+		return !accepting && questions == 0 && choices.size() == 0;
+	}
+	
+	public boolean isAccepting() {
+		return accepting;
+	}
+	
+	public long getQuestionStart() {
+		return questionStart;
+	}
+	
+	public int getQuestions() {
+		return questions;
+	}
+	
+	// iterate with ClickerIdMap.keyAt etc, values are ButtonEnum ordinals
+	public ClickerIdMap getChoices() {
+		return choices;
+	}
+	
+	public static ButtonEnum button(int ordinal) {
+		return BUTTONS[ordinal];
+	}
+	
+	public int getSegment() {
+		return segment;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	void setPosition(int segment, long offset) {
+		this.segment = segment;
+		this.offset = offset;
+	}
+	
+	// writes a snapshot, replacing the file only once it is complete
+	void save(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(segment);
+			out.writeLong(offset);
+			out.writeBoolean(accepting);
+			out.writeLong(questionStart);
+			out.writeInt(questions);
+			out.writeInt(choices.size());
+			for (int slot = 0; slot < choices.capacity(); slot++) {
+				if (choices.keyAt(slot) != null) {
+					out.writeUTF(choices.keyAt(slot));
+					out.writeByte(choices.valueAt(slot));
+					out.writeLong(choices.timeAt(slot));
+				}
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		
+		if (!temp.renameTo(file)) {
+			// windows won't rename over an existing file
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Could not replace snapshot " + file);
+			}
+		}
+	}
+	
+	static SessionState load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				throw new IOException(file + " is not a supported snapshot");
+			}
+			SessionState state = new SessionState();
+			state.segment = in.readInt();
+			state.offset = in.readLong();
+			state.accepting = in.readBoolean();
+			state.questionStart = in.readLong();
+			state.questions = in.readInt();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				String id = in.readUTF();
+				int button = in.readByte();
+				long time = in.readLong();
+				if (button < 0 || button >= BUTTONS.length) {
+					throw new IOException(file + " has an invalid choice for " + id);
+				}
+				state.choices.put(id, button, time);
+			}
+			return state;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package ca.ubc.clicker.server.messages;
+
+// output backlog of a single client
+public class ClientStatsMessage {
+	public Integer id;
+	public Integer queued;
+	public Integer maxQueued;
+	public Long sent;
+	public Long dropped;
+	public Long coalesced;
+	public Long conflated;
+	public Long rateLimited; // input dropped over connectionRateLimit
+}
@@ -2,5 +2,6 @@ package ca.ubc.clicker.server.messages;
 
 public class CommandMessage {
 	public String command;
+	public String id; // optional, echoed in the reply so the sender can match them up
 	public Object arguments;
 }
@@ -1,7 +1,10 @@
 package ca.ubc.clicker.server.messages;
 
-public class CommandResponseMessage {
-	public String type = "command";
+public class CommandResponseMessage extends ResponseMessage {
 	public String command;
-	public Object data;
+	public String id; // of the command this answers, if it had one
+	
+	public CommandResponseMessage() {
+		type = "command";
+	}
 }
@@ -1,7 +1,12 @@
 package ca.ubc.clicker.server.messages;
 
-public class ErrorMessage {
-	public String type = "error";
+// has no data
+public class ErrorMessage extends ResponseMessage {
 	public String error;
 	public String command;
+	public String id; // of the command that failed, if it had one
+	
+	public ErrorMessage() {
+		type = "error";
+	}
 }
@@ -0,0 +1,11 @@
+package ca.ubc.clicker.server.messages;
+
+// summary of a histogram of the values recorded since the server started
+public class HistogramMessage {
+	public Long count;
+	public Long mean;
+	public Long p50;
+	public Long p90;
+	public Long p99;
+	public Long max;
+}
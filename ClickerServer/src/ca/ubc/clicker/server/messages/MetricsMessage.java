@@ -0,0 +1,13 @@
+package ca.ubc.clicker.server.messages;
+
+import java.util.Map;
+
+// the server's metrics, see Metrics
+public class MetricsMessage {
+	public Long time;
+	public Long interval; // ms since the previous snapshot
+	public Map<String, Long> counters; // since the server started
+	public Map<String, Double> rates; // per second over the interval
+	public Map<String, Long> gauges;
+	public Map<String, HistogramMessage> histograms;
+}
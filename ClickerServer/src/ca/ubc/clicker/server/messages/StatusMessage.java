@@ -2,7 +2,13 @@ package ca.ubc.clicker.server.messages;
 
 public class StatusMessage {
 	public Long time;
+	public String session; // the client's, see ClickerSession
 	public String instructorId;
 	public Boolean acceptingChoices;
-	public Integer numClients;
+	public Integer numClients; // in the session
+	public Long pollInterval; // ms until the next base station poll
+	public Long pollLatency; // average microseconds from polling to broadcasting votes
+	public Long pollLatencyMax;
+	public Integer inputQueueDepth; // inputs waiting to be run
+	public Long inputQueueStalls; // inputs that had to wait for space in the input queue
 }
@@ -0,0 +1,10 @@
+package ca.ubc.clicker.server.messages;
+
+import java.util.Map;
+
+// number of clickers currently on each button
+public class TallyMessage {
+	public Map<String, Integer> counts;
+	public Integer total;
+	public Long time;
+}
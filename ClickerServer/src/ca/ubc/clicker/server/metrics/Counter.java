@@ -0,0 +1,40 @@
+package ca.ubc.clicker.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that many threads can add to without contending on one value. Each
+ * thread adds to one of several stripes, padded onto their own cache lines,
+ * and reading the count sums them.
+ *
+ */
+public class Counter {
+	private static final int STRIPES = stripes();
+	private static final int PADDING = 8; // longs per stripe, so two stripes never share a 64 byte cache line
+	
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+	
+	// a power of two at least twice the number of processors, up to 64
+	private static int stripes() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		return Math.min(64, Integer.highestOneBit(Math.max(1, processors)) << 1);
+	}
+	
+	public void increment() {
+		add(1);
+	}
+	
+	public void add(long n) {
+		long id = Thread.currentThread().getId();
+		int stripe = (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+		cells.addAndGet(stripe * PADDING, n);
+	}
+	
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,9 @@
+package ca.ubc.clicker.server.metrics;
+
+/**
+ * A value that is read when metrics are reported, e.g. the depth of a queue.
+ *
+ */
+public interface Gauge {
+	long value();
+}
@@ -0,0 +1,102 @@
+package ca.ubc.clicker.server.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ca.ubc.clicker.server.messages.HistogramMessage;
+import ca.ubc.clicker.server.messages.MetricsMessage;
+import ca.ubc.clicker.server.util.LatencyHistogram;
+
+/**
+ * The server's metrics, by name. Instrumented code looks its counters and
+ * histograms up once and keeps them, so recording is a plain atomic add:
+ *
+ *   private static final Counter votes = Metrics.counter("votes");
+ *
+ * Histograms hold microseconds unless their name says otherwise. Everything
+ * counts from when the server started; snapshot() also works out the rate of
+ * each counter since the previous snapshot.
+ *
+ */
+public class Metrics {
+	private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	
+	// counts at the previous snapshot, for rates. guarded by the class.
+	private static Map<String, Long> lastCounts = new HashMap<String, Long>();
+	private static long lastSnapshot = System.currentTimeMillis();
+	
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+	
+	public static LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+	
+	// replaces any gauge with the same name
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+	
+	public static synchronized MetricsMessage snapshot() {
+		long now = System.currentTimeMillis();
+		long elapsed = Math.max(1, now - lastSnapshot);
+		
+		MetricsMessage message = new MetricsMessage();
+		message.time = now;
+		message.interval = elapsed;
+		message.counters = new TreeMap<String, Long>();
+		message.rates = new TreeMap<String, Double>();
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			String name = entry.getKey();
+			long count = entry.getValue().get();
+			Long last = lastCounts.get(name);
+			counts.put(name, count);
+			message.counters.put(name, count);
+			message.rates.put(name, Math.round((count - (last == null ? 0 : last)) * 10000.0 / elapsed) / 10.0);
+		}
+		lastCounts = counts;
+		lastSnapshot = now;
+		
+		message.gauges = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			message.gauges.put(entry.getKey(), entry.getValue().value());
+		}
+		
+		message.histograms = new TreeMap<String, HistogramMessage>();
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			HistogramMessage summary = new HistogramMessage();
+			summary.count = histogram.getCount();
+			summary.mean = Math.round(histogram.getMean());
+			summary.p50 = histogram.percentile(50);
+			summary.p90 = histogram.percentile(90);
+			summary.p99 = histogram.percentile(99);
+			summary.max = histogram.getMax();
+			message.histograms.put(entry.getKey(), summary);
+		}
+		return message;
+	}
+}
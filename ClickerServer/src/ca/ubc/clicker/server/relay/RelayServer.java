@@ -0,0 +1,496 @@
+package ca.ubc.clicker.server.relay;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.client.ClickerClient;
+import ca.ubc.clicker.client.ClientOutputQueue;
+import ca.ubc.clicker.server.ClickerServer;
+import ca.ubc.clicker.server.CommandController;
+import ca.ubc.clicker.server.ParsedCommand;
+import ca.ubc.clicker.server.RateLimits;
+import ca.ubc.clicker.server.ServerConfig;
+import ca.ubc.clicker.server.ServerThreads;
+import ca.ubc.clicker.server.filters.Filter;
+import ca.ubc.clicker.server.filters.StructuredFilter;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.io.EncodedMessage;
+import ca.ubc.clicker.server.io.IOServer;
+import ca.ubc.clicker.server.messages.CommandMessage;
+import ca.ubc.clicker.server.messages.CommandResponseMessage;
+import ca.ubc.clicker.server.messages.ErrorMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Gauge;
+import ca.ubc.clicker.server.metrics.Metrics;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Serves clients on behalf of another server (the upstream), so the server
+ * with the base station only has to send each broadcast to a few relays
+ * instead of every client. A relay can be the upstream of other relays.
+ *
+ * Everything the upstream broadcasts is sent on to every client. Client
+ * commands are forwarded with an id of the relay's in place of any the
+ * client gave, and the reply or error echoing it is sent back to the client
+ * that asked, with the client's id. Commands whose response the upstream
+ * broadcasts (enable and disable choices) and choose, which has none, aren't
+ * waited for. A reply that doesn't come within relayReplyTimeout ms (e.g. a
+ * filter upstream dropped the command) is given up on with an error. ping,
+ * protocol and the metrics commands are answered by the relay itself.
+ *
+ * After connecting, and after every reconnect, the relay says it is one, so
+ * the upstream applies relayRateLimit to it instead of connectionRateLimit,
+ * joins relaySession if it is set and asks for the status and tally. It
+ * broadcasts both, so clients catch up on anything they missed while the
+ * upstream was away.
+ *
+ * Usage: java RelayServer [upstream-host:port [port]], or relay=host:port in
+ * config.properties to have ClickerServer start one.
+ *
+ */
+public class RelayServer implements IOServer {
+	private static Logger log = LogManager.getLogger();
+	private static final Counter forwarded = Metrics.counter("relay.forwarded");
+	private static final Counter rejected = Metrics.counter("relay.rejected"); // commands sent while the upstream was away
+	private static final Counter mirrored = Metrics.counter("relay.mirrored"); // broadcasts sent on to the clients
+	private static final Counter replies = Metrics.counter("relay.replies");
+	private static final Counter expired = Metrics.counter("relay.expired"); // given up on after relayReplyTimeout
+
+	public static final long DEFAULT_RECONNECT_MIN = 500;
+	public static final long DEFAULT_RECONNECT_MAX = 10000;
+	public static final long DEFAULT_REPLY_TIMEOUT = 30000;
+
+	private static final String CONFIG_PROPERTIES_FILE = "config.properties";
+	private static final String COMMAND_PREFIX = "{\"type\":\"command\"";
+	private static final String ERROR_PREFIX = "{\"type\":\"error\"";
+	private static final String ID_FIELD = "id";
+	private static final String ID_PREFIX = "relay:";
+	private static final Set<String> UNANSWERED = new HashSet<String>(); // commands the upstream doesn't reply to the sender of
+	static {
+		UNANSWERED.add(CommandController.COMMAND_START_VOTING);
+		UNANSWERED.add(CommandController.COMMAND_STOP_VOTING);
+		UNANSWERED.add(CommandController.COMMAND_CHOOSE);
+	}
+
+	// where the reply to a forwarded command goes
+	private static class Reply {
+		final String command;
+		final ClickerClient client; // null for the relay's own commands
+		final String clientId; // the id the client gave the command, put back in the reply
+		final boolean broadcast; // send the relay's own reply to every client
+		final long sent = System.nanoTime();
+
+		Reply(String command, ClickerClient client, String clientId, boolean broadcast) {
+			this.command = command;
+			this.client = client;
+			this.clientId = clientId;
+			this.broadcast = broadcast;
+		}
+	}
+
+	private final IOServer io;
+	private final UpstreamConnection upstream;
+	private final String session; // to join upstream, null for its default session
+	private final long replyTimeout; // ns
+	private final Map<String, Reply> waiting = new LinkedHashMap<String, Reply>(); // by id, oldest first, guarded by itself
+	private long lastId = 0; // guarded by waiting
+	private boolean ready = false; // connected and the handshake is queued, guarded by waiting
+
+	public RelayServer(String upstreamHost, int upstreamPort, int port, ServerConfig config) {
+		ServerThreads.configure(config);
+		ClientOutputQueue.configure(config);
+		RateLimits.configure(config);
+		session = config.getString("relaySession", null);
+		replyTimeout = TimeUnit.MILLISECONDS.toNanos(config.getLong("relayReplyTimeout", DEFAULT_REPLY_TIMEOUT));
+		boolean binary = CommandController.PROTOCOL_BINARY.equals(config.getString("relayProtocol", CommandController.PROTOCOL_JSON));
+		upstream = new UpstreamConnection(this, upstreamHost, upstreamPort, config.getLong("relayReconnectMin", DEFAULT_RECONNECT_MIN),
+				config.getLong("relayReconnectMax", DEFAULT_RECONNECT_MAX), binary);
+		io = ClickerServer.createIOServer(config, port, this);
+		registerGauges();
+	}
+
+	private void registerGauges() {
+		Metrics.gauge("clients", new Gauge() { public long value() {
+			return getNumClients();
+		} });
+		Metrics.gauge("relay.connected", new Gauge() { public long value() {
+			return upstream.isConnected() ? 1 : 0;
+		} });
+		Metrics.gauge("relay.waiting", new Gauge() { public long value() {
+			synchronized (waiting) {
+				return waiting.size();
+			}
+		} });
+	}
+
+	@Override
+	public void run() throws IOException, InterruptedException {
+		upstream.start();
+		if (replyTimeout > 0) {
+			ServerThreads.start(new Runnable() { public void run() {
+				expireReplies();
+			} }, "RelayExpiryThread");
+		}
+		io.run();
+	}
+
+	// checks for late replies a few times per relayReplyTimeout, but at least every second
+	private void expireReplies() {
+		long interval = Math.max(1, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(replyTimeout) / 4));
+		try {
+			while (true) {
+				Thread.sleep(interval);
+				expire();
+			}
+		} catch (InterruptedException e) {
+			log.error("Interrupted: " + e.getMessage());
+		}
+	}
+
+	// called by the upstream connection once it can send, before anything from the clients
+	void upstreamConnected() {
+		synchronized (waiting) {
+			forward(command(CommandController.COMMAND_RELAY, null), new Reply(CommandController.COMMAND_RELAY, null, null, false));
+			if (session != null) {
+				forward(command(CommandController.COMMAND_JOIN_SESSION, session), new Reply(CommandController.COMMAND_JOIN_SESSION, null, null, false));
+			}
+			forward(command(CommandController.COMMAND_STATUS, null), new Reply(CommandController.COMMAND_STATUS, null, null, true));
+			forward(command(CommandController.COMMAND_TALLY, null), new Reply(CommandController.COMMAND_TALLY, null, null, true));
+			ready = true;
+		}
+	}
+
+	// replies won't come for anything still waiting, so those clients get an error
+	void upstreamLost() {
+		List<Reply> failed;
+		synchronized (waiting) {
+			ready = false;
+			failed = new LinkedList<Reply>(waiting.values());
+			waiting.clear();
+		}
+		failed("Lost the connection to the server", failed);
+	}
+
+	// gives up on the replies that have taken longer than relayReplyTimeout
+	private void expire() {
+		List<Reply> failed = null;
+		synchronized (waiting) {
+			if (waiting.isEmpty()) {
+				return;
+			}
+			long now = System.nanoTime();
+			for (Iterator<Reply> i = waiting.values().iterator(); i.hasNext(); ) {
+				Reply reply = i.next();
+				if (now - reply.sent < replyTimeout) {
+					break; // the rest were sent later
+				}
+				if (failed == null) {
+					failed = new LinkedList<Reply>();
+				}
+				failed.add(reply);
+				i.remove();
+			}
+		}
+		if (failed != null) {
+			expired.add(failed.size());
+			failed("No reply from the server", failed);
+		}
+	}
+
+	private void failed(String error, List<Reply> failed) {
+		for (Reply reply : failed) {
+			if (reply.client != null) {
+				outputError(error, reply.command, reply.clientId, reply.client);
+			} else {
+				log.warn(error + " to " + reply.command);
+			}
+		}
+	}
+
+	private static String command(String name, Object arguments) {
+		CommandMessage message = new CommandMessage();
+		message.command = name;
+		message.arguments = arguments;
+		return GsonFactory.gson().toJson(message);
+	}
+
+	// must hold the waiting lock, so the upstream can't be lost in between. a command waiting for a reply
+	// is sent with a new id, which the upstream echoes in the reply or error.
+	private boolean forward(String message, Reply reply) throws JsonParseException {
+		String id = null;
+		if (reply != null) {
+			id = ID_PREFIX + (++lastId);
+			message = withId(message, id);
+		}
+		if (!upstream.send(message)) {
+			return false;
+		}
+		if (reply != null) {
+			waiting.put(id, reply);
+		}
+		forwarded.increment();
+		return true;
+	}
+
+	// the message with id in place of the one it has, or without one if id is null. the id goes first so it is quick to find.
+	private static String withId(String message, String id) {
+		JsonObject json = new JsonParser().parse(message).getAsJsonObject();
+		JsonObject replaced = new JsonObject();
+		if (id != null) {
+			replaced.addProperty(ID_FIELD, id);
+		}
+		for (Map.Entry<String, JsonElement> field : json.entrySet()) {
+			if (!ID_FIELD.equals(field.getKey())) {
+				replaced.add(field.getKey(), field.getValue());
+			}
+		}
+		return replaced.toString();
+	}
+
+	// a message from the upstream: the reply to (or error from) a forwarded command, which echoes its id, or a broadcast
+	void received(String message) {
+		if (!message.startsWith(COMMAND_PREFIX) && !message.startsWith(ERROR_PREFIX)) {
+			io.output(message);
+			mirrored.increment();
+			return;
+		}
+
+		String id = readId(message);
+		Reply reply = null;
+		if (id != null) {
+			synchronized (waiting) {
+				reply = waiting.remove(id);
+			}
+		}
+
+		if (reply == null) {
+			if (id != null && id.startsWith(ID_PREFIX)) {
+				log.warn("Reply after relayReplyTimeout: " + message);
+			} else {
+				io.output(message);
+				mirrored.increment();
+			}
+		} else if (reply.client != null) {
+			io.output(withId(message, reply.clientId), reply.client);
+			replies.increment();
+		} else if (message.startsWith(ERROR_PREFIX)) {
+			log.warn("Error from the server: " + message);
+		} else if (reply.broadcast) {
+			io.output(withId(message, null));
+			mirrored.increment();
+		}
+	}
+
+	// the id of a command response or error, null if it has none
+	private static String readId(String message) {
+		try {
+			JsonReader reader = new JsonReader(new StringReader(message));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (ID_FIELD.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+					return reader.nextString();
+				}
+				reader.skipValue();
+			}
+		} catch (IOException e) {
+			// not a message
+		} catch (IllegalStateException e) {
+			// not a message
+		}
+		return null;
+	}
+
+	// queue up input without specifying clicker client
+	@Override
+	public void input(String message) {
+		input(message, null);
+	}
+
+	// answers the relay's own commands and forwards the rest
+	@Override
+	public void input(String message, ClickerClient client) {
+		ParsedCommand parsed;
+		try {
+			parsed = ParsedCommand.parse(message, client);
+		} catch (IOException e) {
+			log.error("JSON error in input " + message + ": " + e.getMessage());
+			return;
+		}
+		String name = parsed.getName();
+
+		try {
+			if (runLocally(parsed, client)) {
+				return;
+			}
+		} catch (Exception e) {
+			log.warn("Could not run " + message + ": " + e.getMessage());
+			outputError(message, name, parsed.getId(), client);
+			return;
+		}
+
+		boolean sent;
+		try {
+			synchronized (waiting) {
+				sent = ready && forward(message, UNANSWERED.contains(name) || client == null ? null : new Reply(name, client, parsed.getId(), false));
+			}
+		} catch (JsonParseException e) {
+			log.error("JSON error in input " + message + ": " + e.getMessage());
+			outputError(message, name, parsed.getId(), client);
+			return;
+		}
+		if (!sent) {
+			rejected.increment();
+			outputError(message, name, parsed.getId(), client);
+		}
+	}
+
+	// false if the command is the upstream's
+	private boolean runLocally(ParsedCommand command, ClickerClient client) throws IOException {
+		String name = command.getName();
+		if (CommandController.COMMAND_PING.equals(name)) {
+			outputResponse(command, null);
+		} else if (CommandController.COMMAND_PROTOCOL.equals(name) && client != null) {
+			client.output(CommandController.protocolResponse(command.getArguments(String.class), command.getId()));
+		} else if (CommandController.COMMAND_METRICS.equals(name)) {
+			outputResponse(command, Metrics.snapshot());
+		} else if (CommandController.COMMAND_SUBSCRIBE_METRICS.equals(name)) {
+			outputResponse(command, false); // not pushed by relays
+		} else if (CommandController.COMMAND_UNSUBSCRIBE_METRICS.equals(name)) {
+			outputResponse(command, true);
+		} else if (CommandController.COMMAND_RELAY.equals(name) && client != null) {
+			client.setRelay(); // a relay of this one
+			outputResponse(command, true);
+		} else if (CommandController.COMMAND_JOIN_SESSION.equals(name)) {
+			throw new IllegalArgumentException("A relay's clients are all in its relaySession");
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private void outputResponse(ParsedCommand command, Object data) {
+		CommandResponseMessage message = new CommandResponseMessage();
+		message.command = command.getName();
+		message.id = command.getId();
+		message.data = data;
+		output(message, command.getClient());
+	}
+
+	private void outputError(String error, String command, String id, ClickerClient client) {
+		ErrorMessage message = new ErrorMessage();
+		message.error = error;
+		message.command = command;
+		message.id = id;
+		output(message, client);
+	}
+
+	@Override
+	public void output(String message) {
+		io.output(message);
+	}
+
+	@Override
+	public void output(String message, ClickerClient client) {
+		io.output(message, client);
+	}
+
+	@Override
+	public void output(ResponseMessage message, ClickerClient client) {
+		io.output(message, client);
+	}
+
+	@Override
+	public void output(ResponseMessage message, Iterable<ClickerClient> clients) {
+		io.output(message, clients);
+	}
+	
+	@Override
+	public void outputLogged(ResponseMessage message, ClickerClient client, Iterable<ClickerClient> clients, String label) {
+		io.outputLogged(message, client, clients, label);
+	}
+	
+	@Override
+	public boolean isOutputFiltered(String type) {
+		return io.isOutputFiltered(type);
+	}
+	
+	@Override
+	public void output(EncodedMessage message, Iterable<ClickerClient> clients) {
+		io.output(message, clients);
+	}
+
+	// filters run on the upstream, they need a ClickerServer
+	@Override
+	public boolean initializeFilter(Filter filter) {
+		return false;
+	}
+
+	@Override
+	public boolean initializeFilter(StructuredFilter filter) {
+		return false;
+	}
+
+	@Override
+	public void filtersLoaded() {
+	}
+
+	@Override
+	public int getNumClients() {
+		return io.getNumClients();
+	}
+
+	@Override
+	public Iterable<ClickerClient> getClients() {
+		return io.getClients();
+	}
+
+	// reads host:port, defaulting to ClickerServer's port
+	public static RelayServer create(String upstream, int port, ServerConfig config) {
+		String host = upstream;
+		int upstreamPort = ClickerServer.DEFAULT_PORT;
+		int colon = upstream.lastIndexOf(':');
+		if (colon != -1) {
+			host = upstream.substring(0, colon);
+			upstreamPort = Integer.parseInt(upstream.substring(colon + 1));
+		}
+		log.info("Relaying " + host + ":" + upstreamPort + " on port " + port);
+		return new RelayServer(host, upstreamPort, port, config);
+	}
+
+	/**
+	 * Usage: java RelayServer [upstream-host:port [port]]
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		Properties config = new Properties();
+		try {
+			config.load(new FileInputStream(CONFIG_PROPERTIES_FILE));
+		} catch (IOException e) {
+			log.error("Could not find config.properties");
+		}
+
+		String upstream = args.length > 0 ? args[0] : config.getProperty("relay", "localhost:" + ClickerServer.DEFAULT_PORT);
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : Integer.parseInt(config.getProperty("port", String.valueOf(ClickerServer.DEFAULT_PORT)));
+		create(upstream, port, new ServerConfig(config)).run();
+	}
+}
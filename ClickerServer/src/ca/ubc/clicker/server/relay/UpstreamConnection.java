@@ -0,0 +1,188 @@
+package ca.ubc.clicker.server.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ca.ubc.clicker.server.ServerThreads;
+import ca.ubc.clicker.server.io.BinaryFrames;
+import ca.ubc.clicker.server.metrics.Counter;
+import ca.ubc.clicker.server.metrics.Metrics;
+
+/**
+ * The relay's connection to the server it mirrors. Reconnects whenever the
+ * connection is lost, waiting minBackoff ms after the first failure and
+ * doubling that up to maxBackoff. Each connection gets a writer thread and its
+ * own queue of lines to send, so a slow upstream doesn't hold up the relay's
+ * clients and nothing meant for a lost connection is sent on the next one.
+ *
+ * With binary, the connection asks for BinaryFrames right after connecting
+ * and reads the frames back as the JSON the server would have sent.
+ *
+ */
+class UpstreamConnection implements Runnable {
+	private static Logger log = LogManager.getLogger();
+	private static final Counter reconnects = Metrics.counter("relay.reconnects");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String BINARY_COMMAND = "{\"command\":\"protocol\",\"arguments\":\"binary\"}";
+	private static final String BINARY_RESPONSE = "{\"type\":\"command\",\"command\":\"protocol\",\"data\":\"binary\"}";
+	private static final String STOP = new String("stop"); // tells a writer its connection is gone, compared by identity
+
+	private final RelayServer relay;
+	private final String host;
+	private final int port;
+	private final long minBackoff;
+	private final long maxBackoff;
+	private final boolean binary;
+
+	private volatile BlockingQueue<String> outgoing = null; // null while disconnected
+
+	UpstreamConnection(RelayServer relay, String host, int port, long minBackoff, long maxBackoff, boolean binary) {
+		this.relay = relay;
+		this.host = host;
+		this.port = port;
+		this.minBackoff = Math.max(1, minBackoff);
+		this.maxBackoff = Math.max(this.minBackoff, maxBackoff);
+		this.binary = binary;
+	}
+
+	void start() {
+		ServerThreads.start(this, "RelayUpstreamThread");
+	}
+
+	public boolean isConnected() {
+		return outgoing != null;
+	}
+
+	// queues a line for the upstream server, false if there is no connection to send it on
+	boolean send(String line) {
+		BlockingQueue<String> queue = outgoing;
+		return queue != null && queue.offer(line);
+	}
+
+	@Override
+	public void run() {
+		long backoff = minBackoff;
+		while (true) {
+			Socket socket = null;
+			BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+			try {
+				socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+				log.info("Connected to upstream " + host + ":" + port + (binary ? " (binary)" : ""));
+				backoff = minBackoff;
+
+				if (binary) {
+					queue.add(BINARY_COMMAND);
+				}
+				ServerThreads.start(new Writer(socket, queue), "RelayUpstreamWriter");
+				outgoing = queue;
+				relay.upstreamConnected();
+
+				read(socket.getInputStream());
+				log.warn("Upstream " + host + ":" + port + " closed the connection");
+			} catch (IOException e) {
+				log.warn("Upstream " + host + ":" + port + " unavailable: " + e.getMessage());
+			} finally {
+				boolean wasConnected = outgoing != null;
+				outgoing = null;
+				queue.offer(STOP);
+				close(socket);
+				if (wasConnected) {
+					relay.upstreamLost();
+				}
+			}
+
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				log.error("Interrupted: " + e.getMessage());
+				return;
+			}
+			backoff = Math.min(maxBackoff, backoff * 2);
+			reconnects.increment();
+		}
+	}
+
+	// hands each message to the relay until the connection ends
+	private void read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		boolean frames = false;
+		String message;
+		while ((message = frames ? BinaryFrames.read(in) : readLine(in)) != null) {
+			if (!frames && binary && BINARY_RESPONSE.equals(message)) {
+				frames = true; // everything after it is framed
+				continue;
+			}
+			relay.received(message);
+		}
+	}
+
+	// a line without its separator, skipping empty lines. null at the end of the stream.
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n' || b == '\r') {
+				if (line.size() > 0) {
+					return new String(line.toByteArray(), UTF8);
+				}
+			} else {
+				line.write(b);
+			}
+		}
+		return null;
+	}
+
+	private static void close(Socket socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.error("Error closing upstream socket: " + e.getMessage());
+		}
+	}
+
+	// writes a connection's queue until it is lost
+	private static class Writer implements Runnable {
+		private final Socket socket;
+		private final BlockingQueue<String> queue;
+
+		Writer(Socket socket, BlockingQueue<String> queue) {
+			this.socket = socket;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				String line;
+				while ((line = queue.take()) != STOP) {
+					out.write(line.getBytes(UTF8));
+					out.write('\n');
+					if (queue.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				close(socket); // so the reader gives up on it too
+			} catch (InterruptedException e) {
+				log.error("Interrupted: " + e.getMessage());
+			}
+		}
+	}
+}
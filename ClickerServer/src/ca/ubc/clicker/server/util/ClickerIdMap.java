@@ -0,0 +1,131 @@
+package ca.ubc.clicker.server.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from clicker id to an int value and a timestamp. Values
+ * live in parallel primitive arrays, so updating an existing clicker allocates
+ * nothing. Not thread safe. Entries can't be removed individually, only cleared.
+ *
+ */
+public class ClickerIdMap {
+	public static final int NONE = -1;
+	
+	private static final int DEFAULT_CAPACITY = 512; // a large lecture fits without resizing
+	
+	private String[] keys;
+	private int[] values;
+	private long[] times;
+	private int size = 0;
+	
+	public ClickerIdMap() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public ClickerIdMap(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+	
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) { // keep the load factor at or below 0.5
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+	
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		values = new int[capacity];
+		times = new long[capacity];
+	}
+	
+	private static int hash(String id) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	private int slotOf(String id) {
+		int mask = keys.length - 1;
+		int slot = hash(id) & mask;
+		while (keys[slot] != null && !keys[slot].equals(id)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	// sets the value for id, returning the previous value or NONE
+	public int put(String id, int value, long time) {
+		int slot = slotOf(id);
+		if (keys[slot] != null) {
+			int previous = values[slot];
+			values[slot] = value;
+			times[slot] = time;
+			return previous;
+		}
+		
+		keys[slot] = id;
+		values[slot] = value;
+		times[slot] = time;
+		if (++size * 2 > keys.length) {
+			resize();
+		}
+		return NONE;
+	}
+	
+	public int get(String id) {
+		int slot = slotOf(id);
+		return keys[slot] != null ? values[slot] : NONE;
+	}
+	
+	public long getTime(String id) {
+		int slot = slotOf(id);
+		return keys[slot] != null ? times[slot] : NONE;
+	}
+	
+	public boolean containsKey(String id) {
+		return keys[slotOf(id)] != null;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void clear() {
+		Arrays.fill(keys, null);
+		size = 0;
+	}
+	
+	// iterate with slot indexes from 0 to capacity(), skipping slots whose key is null
+	public int capacity() {
+		return keys.length;
+	}
+	
+	public String keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	public int valueAt(int slot) {
+		return values[slot];
+	}
+	
+	public long timeAt(int slot) {
+		return times[slot];
+	}
+	
+	private void resize() {
+		String[] oldKeys = keys;
+		int[] oldValues = values;
+		long[] oldTimes = times;
+		allocate(oldKeys.length * 2);
+		
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = slotOf(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				times[slot] = oldTimes[i];
+			}
+		}
+	}
+}
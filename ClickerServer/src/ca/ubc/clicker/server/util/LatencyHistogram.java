@@ -0,0 +1,116 @@
+package ca.ubc.clicker.server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values (e.g. latencies in microseconds) in buckets
+ * that are exact below 32 and within 1/16 of the value above, for reporting
+ * percentiles without keeping every value. Any thread can record.
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int EXACT = SUB_BUCKETS * 2; // values below this get a bucket each
+	private static final int BUCKETS = EXACT + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(0);
+	
+	static int bucket(long value) {
+		if (value < EXACT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // leaves the top 5 bits, 16 to 31
+		return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+	
+	// the largest value that falls in the bucket
+	static long highestValue(int bucket) {
+		if (bucket < EXACT) {
+			return bucket;
+		}
+		int shift = (bucket - EXACT) / SUB_BUCKETS + 1;
+		long sub = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+	
+	// negative values are counted as 0
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long current;
+		while (value < (current = min.get()) && !min.compareAndSet(current, value));
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+	
+	// adds the other histogram's values to this one
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		
+		long current, value = other.min.get();
+		while (value < (current = min.get()) && !min.compareAndSet(current, value));
+		value = other.max.get();
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+	
+	// the value that percentile percent of the values are at or below (to within the bucket), 0 if empty
+	public long percentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getMin() {
+		return count.get() == 0 ? 0 : min.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public double getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+	
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+}
@@ -0,0 +1,15 @@
+package ca.ubc.clicker.server.util;
+
+/**
+ * What happens to input over a RateLimit.
+ *
+ */
+public enum OverLimitPolicy {
+	DROP,   // discard it quietly
+	REJECT; // discard it and send the client an error
+
+	// parses the config form, e.g. reject
+	public static OverLimitPolicy fromString(String value) {
+		return valueOf(value.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -0,0 +1,65 @@
+package ca.ubc.clicker.server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single time with the generic cell rate algorithm:
+ * a bucket holds the theoretical arrival time of its next request, which may
+ * run at most a burst ahead of now. Taking a request moves it on by the
+ * interval between requests. Buckets are AtomicLongs updated with
+ * compareAndSet, so any number of threads can share one without a lock.
+ *
+ */
+public class RateLimit {
+	private final double perSecond;
+	private final int burst;
+	private final long interval; // ns between requests
+	private final long tolerance; // how far ahead of now a bucket may run
+
+	public RateLimit(double perSecond, int burst) {
+		if (perSecond <= 0) {
+			throw new IllegalArgumentException("Rate limit of " + perSecond + " per second");
+		}
+		this.perSecond = perSecond;
+		this.burst = Math.max(1, burst);
+		this.interval = Math.max(1, (long) (1000000000L / perSecond));
+		this.tolerance = interval * (this.burst - 1);
+	}
+
+	// a full bucket
+	public static AtomicLong newBucket() {
+		return new AtomicLong(Long.MIN_VALUE);
+	}
+
+	// takes a request from the bucket as of now (System.nanoTime), false if it is empty
+	public boolean tryAcquire(AtomicLong bucket, long now) {
+		while (true) {
+			long arrival = bucket.get();
+			long next = Math.max(arrival, now);
+			if (next - now > tolerance) {
+				return false;
+			}
+			if (bucket.compareAndSet(arrival, next + interval)) {
+				return true;
+			}
+		}
+	}
+
+	// true if the bucket has filled up again, so forgetting it changes nothing
+	public boolean isFull(AtomicLong bucket, long now) {
+		return bucket.get() <= now;
+	}
+
+	public double getPerSecond() {
+		return perSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	@Override
+	public String toString() {
+		return perSecond + "/s, bursts of " + burst;
+	}
+}
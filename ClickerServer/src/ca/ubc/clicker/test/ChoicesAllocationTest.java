@@ -0,0 +1,174 @@
+package ca.ubc.clicker.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import ca.ubc.clicker.BaseClickerApp;
+import ca.ubc.clicker.Vote;
+import ca.ubc.clicker.enums.ButtonEnum;
+import ca.ubc.clicker.server.ClickerServer;
+import ca.ubc.clicker.server.ServerConfig;
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.io.ChoicesEncoder;
+import ca.ubc.clicker.server.io.EncodedMessage;
+import ca.ubc.clicker.server.messages.ChoiceMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+/**
+ * Measures the bytes allocated per vote to turn a batch of votes into the
+ * choices broadcast, once warmed up, with the thread's allocation counter:
+ *
+ *   gson     ChoiceMessages and a ResponseMessage serialized by Gson, then encoded
+ *   encoder  ChoicesEncoder
+ *   server   ClickerServer.outputChoices with no clients connected, journaling
+ *            the clicks (only with the server argument, it needs the base station)
+ *
+ * The message sent to the clients has to be allocated, so that is shown
+ * separately; the encoder fails if it allocates more than MAX_OVERHEAD bytes
+ * per vote on top of it. Both paths must produce the same bytes.
+ *
+ * Usage: java ChoicesAllocationTest [votes-per-batch [batches [server]]]
+ *
+ */
+public class ChoicesAllocationTest {
+	private static final int DEFAULT_BATCH_SIZE = 10;
+	private static final int DEFAULT_BATCHES = 200000;
+	private static final double MAX_OVERHEAD = 1.0; // bytes per vote beyond the message itself
+	private static final ButtonEnum[] BUTTONS = ButtonEnum.values();
+
+	private interface Encoding {
+		EncodedMessage encode(List<Vote> votes, long time);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BATCH_SIZE;
+		int batches = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BATCHES;
+		boolean server = args.length > 2 && "server".equals(args[2]);
+
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+			System.out.println("This JVM can't count the bytes a thread allocates");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+		allocation.setThreadAllocatedMemoryEnabled(true);
+
+		final List<Vote> votes = votes(batchSize);
+		Encoding gson = new Encoding() {
+			public EncodedMessage encode(List<Vote> votes, long time) {
+				List<ChoiceMessage> choices = new ArrayList<ChoiceMessage>(votes.size());
+				for (Vote vote : votes) {
+					ChoiceMessage choice = new ChoiceMessage();
+					choice.id = vote.getId();
+					choice.choice = vote.getButton().name();
+					choice.time = time;
+					choices.add(choice);
+				}
+				ResponseMessage message = new ResponseMessage();
+				message.type = "choices";
+				message.data = choices;
+				return EncodedMessage.encode(GsonFactory.gson().toJson(message));
+			}
+		};
+		Encoding encoder = new Encoding() {
+			public EncodedMessage encode(List<Vote> votes, long time) {
+				ChoicesEncoder encoder = ChoicesEncoder.begin();
+				for (int i = 0; i < votes.size(); i++) { // so only the encoder is measured, not an iterator
+					Vote vote = votes.get(i);
+					encoder.add(vote.getId(), vote.getButton().name(), false, time);
+				}
+				return encoder.finish();
+			}
+		};
+
+		long time = System.currentTimeMillis();
+		String expected = gson.encode(votes, time).getText();
+		String actual = encoder.encode(votes, time).getText();
+		if (!expected.equals(actual)) {
+			System.out.println("FAIL: the encoder wrote\n  " + actual + "\nbut gson wrote\n  " + expected);
+			System.exit(1);
+		}
+		int messageLength = encoder.encode(votes, time).length();
+
+		System.out.println("choices encoding, " + batchSize + " votes per batch, " + batches + " batches, "
+				+ String.format("%.1f", (double) messageLength / batchSize) + " bytes per vote sent");
+		// warm up each before measuring
+		measure(allocation, gson, votes, batches);
+		measure(allocation, encoder, votes, batches);
+		double gsonBytes = measure(allocation, gson, votes, batches);
+		double encoderBytes = measure(allocation, encoder, votes, batches);
+
+		// the byte[] and EncodedMessage, with 16 byte headers and 8 byte alignment
+		double messageBytes = (align(16 + messageLength) + align(32)) / (double) batchSize;
+		System.out.println(String.format("gson:    %8.1f bytes/vote allocated", gsonBytes));
+		System.out.println(String.format("encoder: %8.1f bytes/vote allocated, %.1f of them the message", encoderBytes, messageBytes));
+
+		if (server) {
+			measureServer(allocation, votes, batches);
+		}
+
+		double overhead = encoderBytes - messageBytes;
+		if (overhead > MAX_OVERHEAD) {
+			System.out.println(String.format("FAIL: the encoder allocates %.1f bytes/vote besides the message", overhead));
+			System.exit(1);
+		}
+		System.out.println("PASS");
+		System.exit(0); // the server's threads would keep running
+	}
+
+	private static void measureServer(com.sun.management.ThreadMXBean allocation, List<Vote> votes, int batches) throws Exception {
+		File journalDir = File.createTempFile("journal", "");
+		journalDir.delete();
+		Properties properties = new Properties();
+		properties.setProperty("journal", "true");
+		properties.setProperty("journalRecover", "false");
+		properties.setProperty("journalDir", journalDir.getPath());
+		ClickerServer server = new ClickerServer("371BA68A", BaseClickerApp.DEFAULT_CHANNEL_1, BaseClickerApp.DEFAULT_CHANNEL_2, -1,
+				new ServerConfig(properties));
+		server.startAcceptingVotes();
+
+		long thread = Thread.currentThread().getId();
+		for (int round = 0; round < 2; round++) { // the first warms up
+			long before = allocation.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < batches; i++) {
+				server.outputChoices(votes);
+			}
+			long allocated = allocation.getThreadAllocatedBytes(thread) - before;
+			if (round == 1) {
+				System.out.println(String.format("server:  %8.1f bytes/vote allocated", (double) allocated / batches / votes.size()));
+			}
+		}
+	}
+
+	// bytes allocated per vote
+	private static double measure(com.sun.management.ThreadMXBean allocation, Encoding encoding, List<Vote> votes, int batches) {
+		long thread = Thread.currentThread().getId();
+		long time = System.currentTimeMillis();
+		int length = 0;
+		long before = allocation.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < batches; i++) {
+			length += encoding.encode(votes, time).length();
+		}
+		long allocated = allocation.getThreadAllocatedBytes(thread) - before;
+		if (length == 0) { // keep the result alive
+			System.out.println();
+		}
+		return (double) allocated / batches / votes.size();
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) / 8 * 8;
+	}
+
+	private static List<Vote> votes(int count) {
+		List<Vote> votes = new ArrayList<Vote>(count);
+		for (int i = 0; i < count; i++) {
+			votes.add(new Vote(String.format("%08X", 0x10000000 + i), BUTTONS[i % BUTTONS.length]));
+		}
+		return votes;
+	}
+}
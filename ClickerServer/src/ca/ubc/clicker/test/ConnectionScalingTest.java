@@ -0,0 +1,107 @@
+package ca.ubc.clicker.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import ca.ubc.clicker.server.ServerConfig;
+import ca.ubc.clicker.server.ServerThreads;
+import ca.ubc.clicker.server.io.BaseIOServer;
+import ca.ubc.clicker.server.io.NioIOServer;
+
+/**
+ * Starts an IOServer in this process, connects increasing numbers of idle
+ * clients to it and prints the process thread count and resident memory at
+ * each step. Run once per mode so each gets a fresh JVM:
+ *
+ *   java ConnectionScalingTest platform|virtual|nio [port [count count ...]]
+ *
+ * Defaults to 100, 1000 and 10000 clients. Thread count and RSS come from
+ * /proc/self/status, so the numbers include the OS threads backing virtual
+ * threads; on other platforms live Java threads and used heap are reported.
+ * 10000 clients needs roughly 20000 file descriptors (ulimit -n).
+ *
+ */
+public class ConnectionScalingTest {
+	private static final int DEFAULT_PORT = 4555;
+	private static final int[] DEFAULT_COUNTS = { 100, 1000, 10000 };
+	private static final int SETTLE_TIME = 2000;
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : ServerThreads.MODE_PLATFORM;
+		final int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		int[] counts = DEFAULT_COUNTS;
+		if (args.length > 2) {
+			counts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				counts[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("threads", "nio".equals(mode) ? ServerThreads.MODE_PLATFORM : mode);
+		ServerThreads.configure(new ServerConfig(properties));
+
+		final BaseIOServer server = "nio".equals(mode) ? new NioIOServer(port, NioIOServer.DEFAULT_EVENT_LOOPS) : new BaseIOServer(port);
+		Thread serverThread = new Thread("ScalingTestServer") {
+			@Override
+			public void run() {
+				try {
+					server.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(SETTLE_TIME);
+
+		System.out.println("mode\tclients\tthreads\trss_kb");
+		report(mode, 0);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int count : counts) {
+			while (sockets.size() < count) {
+				sockets.add(new Socket("localhost", port));
+			}
+			while (server.getNumClients() < count) {
+				Thread.sleep(50);
+			}
+			Thread.sleep(SETTLE_TIME);
+			System.gc();
+			report(mode, count);
+		}
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		System.exit(0);
+	}
+
+	private static void report(String mode, int clients) throws IOException {
+		long threads = -1, rss = -1;
+		try {
+			BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("Threads:")) {
+					threads = Long.parseLong(line.substring(8).trim());
+				} else if (line.startsWith("VmRSS:")) {
+					rss = Long.parseLong(line.substring(6).replace("kB", "").trim());
+				}
+			}
+			in.close();
+		} catch (IOException e) {
+			// not linux
+			Runtime runtime = Runtime.getRuntime();
+			threads = Thread.activeCount();
+			rss = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+		}
+		System.out.println(mode + "\t" + clients + "\t" + threads + "\t" + rss);
+	}
+}
@@ -0,0 +1,105 @@
+package ca.ubc.clicker.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ubc.clicker.server.gson.GsonFactory;
+import ca.ubc.clicker.server.messages.ChoiceMessage;
+import ca.ubc.clicker.server.messages.ResponseMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Compares the serialization done by ClickerServer.outputChoices before and
+ * after GsonFactory shared its instance and got streaming adapters:
+ *
+ *   per-call    a new Gson for every batch (how GsonFactory used to work)
+ *   reflective  one shared Gson with the default reflective adapters
+ *   factory     GsonFactory.gson()
+ *
+ * Usage: java GsonBenchmark [votes-per-batch [seconds-per-run]]
+ *
+ */
+public class GsonBenchmark {
+	private static final int DEFAULT_BATCH_SIZE = 10;
+	private static final int DEFAULT_SECONDS = 3;
+
+	private interface Serializer {
+		String toJson(Object message);
+	}
+
+	public static void main(String[] args) {
+		int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BATCH_SIZE;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+
+		ResponseMessage message = choicesMessage(batchSize);
+		final Gson reflective = new GsonBuilder().create();
+
+		Serializer perCall = new Serializer() {
+			public String toJson(Object message) {
+				return new GsonBuilder().create().toJson(message);
+			}
+		};
+		Serializer shared = new Serializer() {
+			public String toJson(Object message) {
+				return reflective.toJson(message);
+			}
+		};
+		Serializer factory = new Serializer() {
+			public String toJson(Object message) {
+				return GsonFactory.gson().toJson(message);
+			}
+		};
+
+		System.out.println("outputChoices serialization, " + batchSize + " votes per batch");
+		// warm up each before measuring
+		run(perCall, message, 1);
+		run(shared, message, 1);
+		run(factory, message, 1);
+
+		double perCallRate = run(perCall, message, seconds);
+		double sharedRate = run(shared, message, seconds);
+		double factoryRate = run(factory, message, seconds);
+
+		System.out.println(String.format("per-call:   %,12.0f batches/s", perCallRate));
+		System.out.println(String.format("reflective: %,12.0f batches/s", sharedRate));
+		System.out.println(String.format("factory:    %,12.0f batches/s (%.1fx per-call)", factoryRate, factoryRate / perCallRate));
+	}
+
+	private static ResponseMessage choicesMessage(int batchSize) {
+		List<ChoiceMessage> choices = new ArrayList<ChoiceMessage>(batchSize);
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < batchSize; i++) {
+			ChoiceMessage choice = new ChoiceMessage();
+			choice.id = String.format("%08X", 0x371BA600 + i);
+			choice.choice = String.valueOf((char) ('A' + i % 5));
+			choice.time = time;
+			choices.add(choice);
+		}
+
+		ResponseMessage message = new ResponseMessage();
+		message.type = "choices";
+		message.data = choices;
+		return message;
+	}
+
+	// batches serialized per second
+	private static double run(Serializer serializer, Object message, int seconds) {
+		long end = System.nanoTime() + seconds * 1000000000L;
+		long count = 0;
+		int length = 0;
+		long start = System.nanoTime();
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 100; i++) {
+				length += serializer.toJson(message).length();
+			}
+			count += 100;
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		if (length == 0) { // keep the result alive
+			System.out.println();
+		}
+		return count / elapsed;
+	}
+}
@@ -0,0 +1,515 @@
+package ca.ubc.clicker.test;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ca.ubc.clicker.server.io.BinaryFrames;
+import ca.ubc.clicker.server.util.LatencyHistogram;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Drives a running server with many voter connections and measures, at a
+ * separate set of listener connections, the time from sending each choose
+ * command to receiving the choices broadcast that contains it. Run it against
+ * each server mode on the same box and compare the summaries:
+ *
+ *   java LoadTest [name=value ...]
+ *
+ *   host=localhost port=4444    the server
+ *   listenerPorts=              ports to spread the listeners over, e.g. relays of the server (default port)
+ *   voters=1000                 connections sending votes, one clicker id each
+ *   listeners=10                connections only receiving broadcasts
+ *   rate=500                    votes per second across all voters
+ *   choices=A:1,B:1,C:1,D:1,E:1 relative weight of each choice
+ *   warmup=5 duration=30        seconds, votes sent during warmup are not measured
+ *   readers=2                   threads reading the connections
+ *   protocol=json               or binary, to have every connection switch to BinaryFrames
+ *   label=                      copied into the summary, e.g. the server mode
+ *   summary=                    file for the JSON summary (always printed)
+ *
+ * Each voter waits at least voters / rate seconds between votes and a listener
+ * counts only the first broadcast of each vote, so a vote is correlated with
+ * its broadcast by clicker id alone. Voters read and discard the broadcasts
+ * they receive like any other client. 1000 voters needs over 2000 file
+ * descriptors when the server is on the same box (ulimit -n).
+ *
+ */
+public class LoadTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CHOICES_PREFIX = "{\"type\":\"choices\"";
+	private static final String BINARY_RESPONSE = "{\"type\":\"command\",\"command\":\"protocol\",\"data\":\"binary\"}";
+	private static final int FIRST_ID = 0x40000000; // voter i votes as %08X of FIRST_ID + i
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final long DRAIN_TIME = 2000; // ms to wait for broadcasts after the last vote
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	private final Map<String, String> options;
+	private final String host;
+	private final int port;
+	private final int[] listenerPorts;
+	private final int numVoters;
+	private final int numListeners;
+	private final double rate;
+	private final String[] choices;
+	private final double[] weights; // cumulative, ends at 1
+	private final int warmup;
+	private final int duration;
+	private final int numReaders;
+	private final boolean binary;
+
+	private final List<Connection> voters = new ArrayList<Connection>();
+	private final List<Connection> listeners = new ArrayList<Connection>();
+	private final AtomicLongArray sentAt; // nanoTime of each voter's latest vote
+	private final AtomicIntegerArray sequence; // number of votes each voter has sent
+
+	private volatile long measureStart;
+	private volatile long measureEnd = Long.MAX_VALUE;
+	private volatile boolean running = true;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong delivered = new AtomicLong(); // measured votes received by a listener
+	private final AtomicLong received = new AtomicLong(); // choices broadcasts received by listeners
+	private final AtomicLong disconnects = new AtomicLong();
+	private final AtomicLong listenerBytes = new AtomicLong();
+	private long sent = 0; // measured votes
+	private long sendStalls = 0;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals == -1) {
+				System.err.println("Expected name=value, got " + arg);
+				System.exit(1);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		new LoadTest(options).run();
+		System.exit(0);
+	}
+
+	public LoadTest(Map<String, String> options) {
+		this.options = options;
+		host = option("host", "localhost");
+		port = Integer.parseInt(option("port", "4444"));
+		String[] ports = option("listenerPorts", String.valueOf(port)).split(",");
+		listenerPorts = new int[ports.length];
+		for (int i = 0; i < ports.length; i++) {
+			listenerPorts[i] = Integer.parseInt(ports[i].trim());
+		}
+		numVoters = Integer.parseInt(option("voters", "1000"));
+		numListeners = Integer.parseInt(option("listeners", "10"));
+		rate = Double.parseDouble(option("rate", "500"));
+		warmup = Integer.parseInt(option("warmup", "5"));
+		duration = Integer.parseInt(option("duration", "30"));
+		numReaders = Math.max(1, Integer.parseInt(option("readers", "2")));
+		binary = "binary".equals(option("protocol", "json"));
+
+		String[] parts = option("choices", "A:1,B:1,C:1,D:1,E:1").split(",");
+		choices = new String[parts.length];
+		weights = new double[parts.length];
+		double total = 0;
+		for (int i = 0; i < parts.length; i++) {
+			String[] pair = parts[i].split(":");
+			choices[i] = pair[0].trim();
+			total += pair.length > 1 ? Double.parseDouble(pair[1]) : 1;
+			weights[i] = total;
+		}
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] /= total;
+		}
+
+		sentAt = new AtomicLongArray(numVoters);
+		sequence = new AtomicIntegerArray(numVoters);
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	public void run() throws Exception {
+		System.out.println("Connecting " + numVoters + " voters and " + numListeners + " listeners to " + host + ":" + port);
+		List<Selector> selectors = new ArrayList<Selector>();
+		for (int i = 0; i < numReaders; i++) {
+			selectors.add(Selector.open());
+		}
+
+		for (int i = 0; i < numListeners; i++) {
+			listeners.add(connect(listenerPorts[i % listenerPorts.length], i, true, selectors.get(i % numReaders)));
+		}
+		for (int i = 0; i < numVoters; i++) {
+			voters.add(connect(port, i, false, selectors.get(i % numReaders)));
+		}
+
+		List<Thread> readers = new ArrayList<Thread>();
+		for (final Selector selector : selectors) {
+			Thread reader = new Thread("LoadTestReader") {
+				@Override
+				public void run() {
+					read(selector);
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+			readers.add(reader);
+		}
+
+		if (binary) {
+			for (Connection connection : listeners) {
+				send(connection, "{\"command\":\"protocol\",\"arguments\":\"binary\"}");
+			}
+			for (Connection connection : voters) {
+				send(connection, "{\"command\":\"protocol\",\"arguments\":\"binary\"}");
+			}
+		}
+		
+		// the server may be waiting for an instructor to enable choices
+		send(listeners.isEmpty() ? voters.get(0) : listeners.get(0), "{\"command\":\"enable choices\"}");
+		Thread.sleep(500);
+
+		System.out.println("Sending " + rate + " votes/s for " + warmup + "s warmup and " + duration + "s measured");
+		long start = System.nanoTime();
+		measureStart = start + warmup * 1000000000L;
+		long end = measureStart + duration * 1000000000L;
+		vote(start, end);
+		measureEnd = end;
+
+		Thread.sleep(DRAIN_TIME);
+		running = false;
+		for (Selector selector : selectors) {
+			selector.wakeup();
+		}
+		for (Thread reader : readers) {
+			reader.join(1000);
+		}
+
+		report();
+	}
+
+	private Connection connect(int port, int index, boolean listener, Selector selector) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		channel.configureBlocking(false);
+		Connection connection = new Connection(channel, index, listener);
+		channel.register(selector, SelectionKey.OP_READ, connection);
+		return connection;
+	}
+
+	// sends votes at the configured rate until end, round robin over the voters
+	private void vote(long start, long end) throws IOException, InterruptedException {
+		Random random = new Random();
+		long count = 0;
+		int voter = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= end) {
+				break;
+			}
+			long due = (long) ((now - start) / 1e9 * rate);
+			if (count >= due) {
+				long next = start + (long) ((count + 1) / rate * 1e9);
+				long wait = Math.min(next, end) - now;
+				if (wait > 1000000) {
+					Thread.sleep(wait / 1000000);
+				} else if (wait > 0) {
+					Thread.yield();
+				}
+				continue;
+			}
+
+			while (count < due) {
+				Connection connection = voters.get(voter);
+				String id = String.format("%08X", FIRST_ID + voter);
+				String message = "{\"command\":\"choose\",\"arguments\":[{\"id\":\"" + id + "\",\"choice\":\"" + choose(random) + "\"}]}";
+
+				long sendTime = System.nanoTime();
+				sentAt.set(voter, sendTime);
+				sequence.incrementAndGet(voter);
+				send(connection, message);
+				if (sendTime >= measureStart) {
+					sent++;
+				}
+
+				count++;
+				voter = (voter + 1) % numVoters;
+			}
+		}
+	}
+
+	private String choose(Random random) {
+		double r = random.nextDouble();
+		for (int i = 0; i < weights.length; i++) {
+			if (r < weights[i]) {
+				return choices[i];
+			}
+		}
+		return choices[choices.length - 1];
+	}
+
+	private void send(Connection connection, String message) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap((message + "\n").getBytes(UTF8));
+		synchronized (connection) {
+			connection.channel.write(buffer);
+			while (buffer.hasRemaining()) {
+				// the server isn't reading this connection fast enough
+				sendStalls++;
+				Thread.yield();
+				connection.channel.write(buffer);
+			}
+		}
+	}
+
+	private void read(Selector selector) {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		while (running) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid() || !key.isReadable()) {
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+					buffer.clear();
+					int numRead;
+					try {
+						numRead = connection.channel.read(buffer);
+					} catch (IOException e) {
+						numRead = -1;
+					}
+					if (numRead == -1) {
+						key.cancel();
+						connection.channel.close();
+						disconnects.incrementAndGet();
+					} else if (connection.listener) {
+						listenerBytes.addAndGet(numRead);
+						connection.received(buffer.array(), numRead);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	// a choices broadcast reached a listener
+	private void received(Connection listener, String line) {
+		long now = System.nanoTime();
+		received.incrementAndGet();
+		try {
+			JsonReader reader = new JsonReader(new StringReader(line));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!"data".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				while (reader.hasNext()) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						if ("id".equals(reader.nextName())) {
+							receivedVote(listener, reader.nextString(), now);
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+				}
+				reader.endArray();
+			}
+		} catch (Exception e) {
+			System.err.println("Couldn't parse " + line + ": " + e);
+		}
+	}
+
+	private void receivedVote(Connection listener, String id, long now) {
+		try {
+			receivedVote(listener, (int) (Long.parseLong(id, 16) - FIRST_ID), now);
+		} catch (NumberFormatException e) {
+			// someone else's clicker
+		}
+	}
+	
+	private void receivedVote(Connection listener, int voter, long now) {
+		if (voter < 0 || voter >= numVoters) {
+			return; // someone else's clicker
+		}
+
+		int votes = sequence.get(voter);
+		if (listener.seen[voter] == votes) {
+			return; // already received this vote
+		}
+		listener.seen[voter] = votes;
+
+		long sendTime = sentAt.get(voter);
+		if (sendTime >= measureStart && sendTime < measureEnd) {
+			latency.record((now - sendTime) / 1000);
+			delivered.incrementAndGet();
+		}
+	}
+
+	private void report() throws IOException {
+		long expected = sent * numListeners;
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("label", option("label", ""));
+		summary.put("host", host);
+		summary.put("port", port);
+		summary.put("voters", numVoters);
+		summary.put("listeners", numListeners);
+		summary.put("rate", rate);
+		summary.put("choices", option("choices", "A:1,B:1,C:1,D:1,E:1"));
+		summary.put("warmup", warmup);
+		summary.put("duration", duration);
+		summary.put("sent", sent);
+		summary.put("sentRate", sent / (double) duration);
+		summary.put("sendStalls", sendStalls);
+		summary.put("broadcasts", received.get());
+		summary.put("delivered", delivered.get());
+		summary.put("expected", expected);
+		summary.put("deliveredRatio", expected == 0 ? 0 : delivered.get() / (double) expected);
+		summary.put("disconnects", disconnects.get());
+		summary.put("protocol", binary ? "binary" : "json");
+		summary.put("listenerBytes", listenerBytes.get());
+		summary.put("bytesPerDelivery", delivered.get() == 0 ? 0 : listenerBytes.get() / (double) delivered.get());
+
+		Map<String, Object> latencies = new LinkedHashMap<String, Object>();
+		latencies.put("count", latency.getCount());
+		latencies.put("min", latency.getMin());
+		latencies.put("mean", Math.round(latency.getMean()));
+		for (double percentile : PERCENTILES) {
+			latencies.put("p" + String.valueOf(percentile).replace(".0", "").replace(".", "_"), latency.percentile(percentile));
+		}
+		latencies.put("max", latency.getMax());
+		summary.put("latencyMicros", latencies);
+
+		System.out.println(String.format("sent %d votes (%.1f/s), %d of %d expected deliveries (%.2f%%), %d disconnects",
+				sent, sent / (double) duration, delivered.get(), expected, 100.0 * delivered.get() / Math.max(1, expected), disconnects.get()));
+		System.out.println("latency (us)\tmin\tmean\tp50\tp90\tp99\tp99.9\tp99.99\tmax");
+		StringBuilder row = new StringBuilder("\t\t" + latency.getMin() + "\t" + Math.round(latency.getMean()));
+		for (double percentile : PERCENTILES) {
+			row.append('\t').append(latency.percentile(percentile));
+		}
+		row.append('\t').append(latency.getMax());
+		System.out.println(row);
+
+		String json = new GsonBuilder().setPrettyPrinting().create().toJson(summary);
+		System.out.println(json);
+		String file = options.get("summary");
+		if (file != null) {
+			FileWriter out = new FileWriter(file);
+			try {
+				out.write(json);
+				out.write('\n');
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private class Connection {
+		final SocketChannel channel;
+		final int index;
+		final boolean listener;
+		final int[] seen; // listeners: the vote sequence last received from each voter
+		private byte[] line = new byte[256]; // or the frame so far once binary
+		private int lineLength = 0;
+		private boolean binary = false; // receiving frames, after the protocol response
+
+		Connection(SocketChannel channel, int index, boolean listener) {
+			this.channel = channel;
+			this.index = index;
+			this.listener = listener;
+			this.seen = listener ? new int[numVoters] : null;
+		}
+
+		// splits what was read into lines or frames, only called by the connection's reader
+		void received(byte[] bytes, int length) {
+			for (int i = 0; i < length; i++) {
+				byte b = bytes[i];
+				if (binary) {
+					append(b);
+					if (lineLength >= 4) {
+						int frameLength = ByteBuffer.wrap(line, 0, 4).getInt();
+						if (lineLength == 4 + frameLength) {
+							receivedFrame(frameLength);
+							lineLength = 0;
+						}
+					}
+				} else if (b == '\n' || b == '\r') {
+					if (lineLength > 0) {
+						String text = new String(line, 0, lineLength, UTF8);
+						lineLength = 0;
+						if (text.startsWith(CHOICES_PREFIX)) {
+							LoadTest.this.received(this, text);
+						} else if (text.equals(BINARY_RESPONSE)) {
+							binary = true;
+						}
+					}
+				} else {
+					append(b);
+				}
+			}
+		}
+		
+		private void append(byte b) {
+			if (lineLength == line.length) {
+				byte[] larger = new byte[line.length * 2];
+				System.arraycopy(line, 0, larger, 0, lineLength);
+				line = larger;
+			}
+			line[lineLength++] = b;
+		}
+		
+		// reads the ids straight out of choices frames, see BinaryFrames
+		private void receivedFrame(int frameLength) {
+			long now = System.nanoTime();
+			if (line[4] == BinaryFrames.FRAME_CHOICES) {
+				received.incrementAndGet();
+				ByteBuffer frame = ByteBuffer.wrap(line, 5, frameLength - 1);
+				frame.getLong(); // base time
+				int count = frame.getShort() & 0xffff;
+				for (int i = 0; i < count; i++) {
+					frame.get(); // flags
+					int id = frame.getInt();
+					frame.get(); // choice
+					BinaryFrames.readVarint(frame);
+					receivedVote(this, id - FIRST_ID, now);
+				}
+			} else if (line[4] == BinaryFrames.FRAME_JSON) {
+				String text = new String(line, 5, frameLength - 1, UTF8);
+				if (text.startsWith(CHOICES_PREFIX)) {
+					LoadTest.this.received(this, text);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return (listener ? "listener " : "voter ") + index;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package ca.ubc.clicker.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Sends a running server choose commands with a vote that has no clicker id,
+ * which must be discarded without affecting the other votes in the command or
+ * the session's later commands. Turns voting on, and off again at the end.
+ *
+ *   java MalformedChoicesTest [host [port]]
+ *
+ * Prints PASS, or FAIL and exits with 1.
+ *
+ */
+public class MalformedChoicesTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String VALID_ID = "7E57DA7A";
+	private static final int TIMEOUT = 5000; // ms to wait for each reply
+
+	private final BufferedReader in;
+	private final OutputStream out;
+
+	private MalformedChoicesTest(Socket socket) throws IOException {
+		socket.setSoTimeout(TIMEOUT);
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+		this.out = socket.getOutputStream();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 4444;
+
+		Socket socket = new Socket(host, port);
+		try {
+			MalformedChoicesTest test = new MalformedChoicesTest(socket);
+			String failure = test.run();
+			if (failure != null) {
+				System.out.println("FAIL: " + failure);
+				System.exit(1);
+			}
+			System.out.println("PASS");
+		} finally {
+			socket.close();
+		}
+	}
+
+	// null if the server passed
+	private String run() throws IOException {
+		send("{\"command\":\"enable choices\"}");
+		if (await("command", "enable choices", null) == null) {
+			return "voting wasn't enabled";
+		}
+
+		send("{\"command\":\"choose\",\"arguments\":[{\"choice\":\"A\"}]}");
+		send("{\"command\":\"choose\",\"arguments\":[{\"choice\":\"B\"},{\"id\":\"" + VALID_ID + "\",\"choice\":\"C\"}]}");
+		JsonObject choices = await("choices", null, null);
+		if (choices == null) {
+			return "the vote with an id wasn't broadcast";
+		}
+		for (JsonElement choice : choices.getAsJsonArray("data")) {
+			JsonElement id = choice.getAsJsonObject().get("id");
+			if (id == null || !VALID_ID.equals(id.getAsString())) {
+				return "broadcast " + choice + " instead of only " + VALID_ID;
+			}
+		}
+
+		// the session still runs commands
+		send("{\"command\":\"status\",\"id\":\"after\"}");
+		if (await("command", "status", "after") == null) {
+			return "no status after the votes without an id";
+		}
+
+		send("{\"command\":\"disable choices\"}");
+		return null;
+	}
+
+	private void send(String line) throws IOException {
+		out.write((line + "\n").getBytes(UTF8));
+		out.flush();
+	}
+
+	// the next message of the type (and command and id, if not null), skipping others. null if none came in time.
+	private JsonObject await(String type, String command, String id) throws IOException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		JsonParser parser = new JsonParser();
+		try {
+			String line;
+			while (System.currentTimeMillis() < deadline && (line = in.readLine()) != null) {
+				JsonObject message = parser.parse(line).getAsJsonObject();
+				if (matches(message, "type", type) && (command == null || matches(message, "command", command))
+						&& (id == null || matches(message, "id", id))) {
+					return message;
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			// nothing more came
+		}
+		return null;
+	}
+
+	private static boolean matches(JsonObject message, String field, String value) {
+		JsonElement element = message.get(field);
+		return element != null && element.isJsonPrimitive() && value.equals(element.getAsString());
+	}
+}